@@ -3,6 +3,7 @@ import de.undercouch.gradle.tasks.download.Download
 plugins {
     id("java")
     id("org.jetbrains.kotlin.jvm") version "2.3.0"
+    id("org.jetbrains.kotlin.kapt") version "2.3.0"
     id("org.jetbrains.intellij.platform") version "2.6.0"
     id("de.undercouch.download") version "5.6.0"
 }
@@ -16,6 +17,7 @@ object Versions {
     const val emmyDebugger = "1.9.2"
     const val jvm = "17"
     const val ideaSDK = "2026.2"
+    const val jmh = "1.37"
 }
 
 // 构建数据配置
@@ -209,6 +211,18 @@ sourceSets {
         resources.exclude("debugger/**/*")
         resources.exclude("server/**/*")
     }
+
+    // 调试器负载基准测试，不打包进插件
+    create("benchmark") {
+        compileClasspath += main.get().output + main.get().compileClasspath
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
+// 基准测试依赖
+dependencies {
+    "benchmarkImplementation"("org.openjdk.jmh:jmh-core:${Versions.jmh}")
+    "kaptBenchmark"("org.openjdk.jmh:jmh-generator-annprocess:${Versions.jmh}")
 }
 
 // ============= IntelliJ 平台配置 =============
@@ -279,4 +293,25 @@ tasks {
     clean {
         dependsOn(cleanDependencies)
     }
+
+    // 调试器负载基准测试: ./gradlew debuggerBenchmark -PbenchmarkArgs="--steps=5000 --fail-p99-ms=20"
+    register<JavaExec>("debuggerBenchmark") {
+        group = "verification"
+        description = "Run the debugger transport load benchmark against a fake Emmy debuggee"
+
+        classpath = sourceSets["benchmark"].runtimeClasspath
+        mainClass.set("com.tang.intellij.lua.debugger.benchmark.DebuggerLoadBenchmarkKt")
+        args = (project.findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() }.orEmpty()
+    }
+
+    // 协议编解码 JMH 基准测试: ./gradlew codecBenchmark -PbenchmarkArgs="-p tableSize=20"
+    register<JavaExec>("codecBenchmark") {
+        group = "verification"
+        description = "Run the JMH benchmark of the debugger protocol JSON codec"
+
+        classpath = sourceSets["benchmark"].runtimeClasspath
+        mainClass.set("org.openjdk.jmh.Main")
+        args = listOf("ProtocolCodecBenchmark") +
+                (project.findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() }.orEmpty()
+    }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.benchmark
+
+import com.google.gson.GsonBuilder
+import com.tang.intellij.lua.debugger.model.*
+import com.tang.intellij.lua.debugger.transport.*
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.net.ServerSocket
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import kotlin.system.exitProcess
+
+/**
+ * End-to-end load benchmark of the Emmy debugger transport stack against [FakeDebuggee].
+ *
+ * For every transport mode it measures:
+ *  - step latency: StepOver sent until the resulting BreakNotify, or stack delta, has been decoded and its top frame walked
+ *  - watches: a round of evaluations sent back to back, as the Watches view does on a break,
+ *    until the last response has been handled
+ *  - throughput: BreakNotify messages handled per second while the debuggee floods breaks
+ *  - allocation per break on the IDE side, from the per-thread allocation counters
+ *
+ * Options are passed as --name=value, see [BenchmarkOptions]. With --unix-socket both modes run
+ * over a Unix domain socket instead of TCP, and the server mode checks its socket file is gone
+ * once the transport has stopped. With --fail-p99-ms the
+ * process exits with status 1 when a step p99 exceeds the limit, so CI can gate on it.
+ */
+fun main(args: Array<String>) {
+    val options = BenchmarkOptions.parse(args)
+    val results = TransportMode.entries.map { runScenario(it, options) }
+
+    results.forEach { println(it.format()) }
+    options.out?.let { path ->
+        File(path).writeText(GsonBuilder().setPrettyPrinting().create().toJson(results))
+        println("Results written to $path")
+    }
+
+    val limit = options.failP99Ms
+    if (limit != null && results.any { it.stepP99Micros > limit * 1000 }) {
+        System.err.println("Step p99 exceeds $limit ms")
+        exitProcess(1)
+    }
+    exitProcess(0)
+}
+
+/**
+ * @param steps Measured steps per mode, after [warmup] unmeasured ones
+ * @param flood BreakNotify messages in the throughput run
+ * @param watches Evaluations per watches round
+ * @param watchRounds Measured watches rounds per mode
+ * @param out Optional JSON result file
+ * @param failP99Ms Fail when a step p99 exceeds this many milliseconds
+ * @param sharedMemory Offer shared memory to the debuggee, which runs on this host
+ * @param unixSocket Path of a Unix domain socket to use instead of a TCP port
+ */
+data class BenchmarkOptions(
+    val steps: Int = 2000,
+    val warmup: Int = 500,
+    val flood: Int = 5000,
+    val watches: Int = 30,
+    val watchRounds: Int = 200,
+    val script: DebuggeeScript = DebuggeeScript(),
+    val out: String? = null,
+    val failP99Ms: Double? = null,
+    val sharedMemory: Boolean = false,
+    val unixSocket: String? = null
+) {
+    companion object {
+        fun parse(args: Array<String>): BenchmarkOptions {
+            val values = args.filter { it.startsWith("--") && it.contains('=') }
+                .associate { it.removePrefix("--").substringBefore('=') to it.substringAfter('=') }
+            fun int(name: String, default: Int) = values[name]?.toInt() ?: default
+            val defaults = DebuggeeScript()
+            val capabilities = values["capabilities"]?.split(',')?.filter { it.isNotBlank() }?.toSet()
+            return BenchmarkOptions(
+                steps = int("steps", 2000),
+                warmup = int("warmup", 500),
+                flood = int("flood", 5000),
+                watches = int("watches", 30),
+                watchRounds = int("watch-rounds", 200),
+                script = DebuggeeScript(
+                    stackDepth = int("stack-depth", defaults.stackDepth),
+                    localsCount = int("locals", defaults.localsCount),
+                    upvaluesCount = int("upvalues", defaults.upvaluesCount),
+                    tableSize = int("table-size", defaults.tableSize),
+                    tableDepth = int("table-depth", defaults.tableDepth),
+                    floodRate = int("flood-rate", defaults.floodRate),
+                    capabilities = capabilities ?: defaults.capabilities,
+                    staleDeltaEvery = int("stale-delta-every", defaults.staleDeltaEvery)
+                ),
+                out = values["out"],
+                failP99Ms = values["fail-p99-ms"]?.toDouble(),
+                sharedMemory = values["shared-memory"]?.toBoolean() ?: false,
+                unixSocket = values["unix-socket"]
+            )
+        }
+    }
+}
+
+data class ScenarioResult(
+    val mode: String,
+    val breakPayloadBytes: Int,
+    val deltaPayloadBytes: Int,
+    val stepP50Micros: Long,
+    val stepP99Micros: Long,
+    val stepMaxMicros: Long,
+    val watchesP50Micros: Long,
+    val watchesP99Micros: Long,
+    val messagesPerSecond: Double,
+    val bytesAllocatedPerBreak: Long,
+    val metrics: TransportMetrics.Snapshot
+) {
+    fun format(): String {
+        return ("%-6s break %,d B delta %,d B | step p50 %.3f ms p99 %.3f ms max %.3f ms | watches p50 %.3f ms p99 %.3f ms | " +
+                "%,.0f msgs/s | %,d B allocated per break")
+            .format(mode, breakPayloadBytes, deltaPayloadBytes, stepP50Micros / 1000.0, stepP99Micros / 1000.0, stepMaxMicros / 1000.0,
+                watchesP50Micros / 1000.0, watchesP99Micros / 1000.0, messagesPerSecond, bytesAllocatedPerBreak)
+    }
+}
+
+private fun runScenario(mode: TransportMode, options: BenchmarkOptions): ScenarioResult {
+    val debuggee = FakeDebuggee(options.script.copy(floodCount = options.flood))
+    val handler = BenchmarkHandler()
+    // Platform threads keep the allocation counters of the handler threads observable
+    val executor = PlatformTransportExecutor()
+
+    val socketPath = options.unixSocket?.let { Path.of(it) }
+    val port = when {
+        socketPath != null -> 0
+        mode == TransportMode.CLIENT -> debuggee.listen()
+        else -> freePort()
+    }
+    val transport = if (socketPath != null) {
+        when (mode) {
+            TransportMode.CLIENT -> {
+                debuggee.listen(socketPath)
+                UnixSocketClientTransport(socketPath.toString(), executor)
+            }
+            TransportMode.SERVER -> UnixSocketServerTransport(socketPath.toString(), executor)
+        }
+    } else {
+        when (mode) {
+            TransportMode.CLIENT -> ClientTransport("127.0.0.1", port, executor)
+            TransportMode.SERVER -> ServerTransport("127.0.0.1", port, executor)
+        }
+    }
+    transport.offerSharedMemory = options.sharedMemory
+    handler.transport = transport
+    transport.handler = handler
+    transport.start()
+    if (mode == TransportMode.SERVER) {
+        if (socketPath != null) debuggee.connect(socketPath) else debuggee.connect(port)
+    }
+
+    try {
+        // The handshake ends with the first break
+        handler.awaitBreak()
+
+        repeat(options.warmup) { step(transport, handler) }
+        val latency = LatencyHistogram()
+        repeat(options.steps) { latency.record(step(transport, handler)) }
+        val watches = LatencyHistogram()
+        repeat(options.watchRounds) { watches.record(evaluateWatches(transport, handler, options.watches)) }
+
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val ideThreads = { Thread.getAllStackTraces().keys.filter { !it.name.startsWith("Fake Emmy") }.map { it.id } }
+        fun allocated() = ideThreads().sumOf { threads.getThreadAllocatedBytes(it).coerceAtLeast(0) }
+
+        val allocatedBefore = allocated()
+        val start = System.nanoTime()
+        transport.send(DebugActionRequest(DebugAction.Continue))
+        repeat(options.flood) { handler.awaitBreak() }
+        val elapsed = System.nanoTime() - start
+        val allocatedPerBreak = (allocated() - allocatedBefore) / options.flood
+
+        val snapshot = latency.snapshot()
+        val watchesSnapshot = watches.snapshot()
+        return ScenarioResult(
+            mode = if (socketPath != null) "${mode.name}/UNIX" else mode.name,
+            breakPayloadBytes = debuggee.breakPayloadSize,
+            deltaPayloadBytes = debuggee.deltaPayloadSize,
+            stepP50Micros = snapshot.p50Micros,
+            stepP99Micros = snapshot.p99Micros,
+            stepMaxMicros = snapshot.maxMicros,
+            watchesP50Micros = watchesSnapshot.p50Micros,
+            watchesP99Micros = watchesSnapshot.p99Micros,
+            messagesPerSecond = options.flood / (elapsed / 1e9),
+            bytesAllocatedPerBreak = allocatedPerBreak,
+            metrics = transport.metrics.snapshot()
+        )
+    } finally {
+        transport.stop()
+        debuggee.close()
+        executor.shutdown()
+        if (socketPath != null && mode == TransportMode.SERVER) {
+            check(awaitDeleted(socketPath)) { "Socket file $socketPath left behind" }
+        }
+    }
+}
+
+// The server transport removes its socket file on the reactor thread after stopping
+private fun awaitDeleted(path: Path): Boolean {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+    while (Files.exists(path)) {
+        if (System.nanoTime() > deadline) return false
+        Thread.sleep(10)
+    }
+    return true
+}
+
+private fun step(transport: DebugTransport, handler: BenchmarkHandler): Long {
+    val start = System.nanoTime()
+    transport.send(DebugActionRequest(DebugAction.StepOver))
+    handler.awaitBreak()
+    return System.nanoTime() - start
+}
+
+private fun evaluateWatches(transport: DebugTransport, handler: BenchmarkHandler, count: Int): Long {
+    val start = System.nanoTime()
+    repeat(count) { i -> transport.send(EvalRequest("watch_$i", 0, 0, 1)) }
+    handler.awaitEvaluations(count)
+    return System.nanoTime() - start
+}
+
+private fun freePort(): Int = ServerSocket(0).use { it.localPort }
+
+/**
+ * Handler doing the work EmmyDebugProcessBase does per message without an IDE session:
+ * the handshake on connect, decoding every BreakNotify or applying every stack delta,
+ * and walking the top frame and every evaluated value
+ */
+private class BenchmarkHandler : TransportHandler {
+    lateinit var transport: DebugTransport
+
+    private val breaks = LinkedBlockingQueue<List<LazyStackFrame>>()
+    private val snapshots = StackSnapshots()
+    private val evaluations = Semaphore(0)
+
+    fun awaitBreak(): List<LazyStackFrame> {
+        return breaks.poll(30, TimeUnit.SECONDS) ?: error("Timed out waiting for BreakNotify")
+    }
+
+    fun awaitEvaluations(count: Int) {
+        check(evaluations.tryAcquire(count, 30, TimeUnit.SECONDS)) { "Timed out waiting for EvalRsp" }
+    }
+
+    override fun onConnect(success: Boolean) {
+        check(success) { "Connection failed" }
+        transport.sendAll(listOf(
+            InitRequest("", arrayOf("lua"), transport.capabilities + DebugCapabilities.STACK_DELTA),
+            ReadyRequest()
+        ))
+    }
+
+    override fun onDisconnect() {
+    }
+
+    override fun onMessage(command: DebugCommand, payload: MessagePayload) {
+        val stacks = when (command) {
+            DebugCommand.BreakNotify -> {
+                val snapshot = BreakNotifyDecoder.decodeSnapshot(payload.toByteArray()) ?: error("Malformed BreakNotify")
+                snapshots.full(snapshot)
+            }
+            DebugCommand.BreakDeltaNotify -> {
+                payload.parse<BreakDeltaNotification>()?.let(snapshots::apply) ?: run {
+                    transport.send(StackSnapshotRequest())
+                    return
+                }
+            }
+            DebugCommand.EvalRsp -> {
+                payload.parse<EvalResponse>()?.value?.let(::walk)
+                evaluations.release()
+                return
+            }
+            DebugCommand.EvalBatchRsp -> {
+                val results = payload.parse<EvalBatchResponse>()?.results.orEmpty()
+                results.forEach { result -> result.value?.let(::walk) }
+                evaluations.release(results.size)
+                return
+            }
+            else -> return
+        }
+        // The Variables view expands the top frame on every break
+        stacks.firstOrNull()?.let { frame ->
+            frame.localVariables.forEach(::walk)
+            frame.upvalueVariables.forEach(::walk)
+        }
+        breaks.add(stacks)
+    }
+
+    private fun walk(variable: DebugVariable) {
+        variable.displayName
+        variable.valueTypeValue
+        variable.children?.forEach(::walk)
+    }
+
+    override fun onError(message: String, exception: Throwable?) {
+        System.err.println("Transport error: $message")
+    }
+
+    override fun onLog(message: String) {
+    }
+}
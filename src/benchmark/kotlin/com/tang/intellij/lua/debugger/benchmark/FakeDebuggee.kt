@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.benchmark
+
+import com.google.gson.stream.JsonWriter
+import com.tang.intellij.lua.debugger.model.*
+import com.tang.intellij.lua.debugger.transport.FrameDecoder
+import com.tang.intellij.lua.debugger.transport.FrameFormat
+import com.tang.intellij.lua.debugger.transport.FrameOutput
+import com.tang.intellij.lua.debugger.transport.MessagePayload
+import com.tang.intellij.lua.debugger.transport.RingChannel
+import com.tang.intellij.lua.debugger.transport.RingIdleStrategy
+import com.tang.intellij.lua.debugger.transport.SharedMemoryRegion
+import com.tang.intellij.lua.debugger.transport.parse
+import java.io.File
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.net.UnixDomainSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * What the fake debuggee reports and how often
+ * @param stackDepth Frames per BreakNotify
+ * @param localsCount Locals per frame, every other one is a table
+ * @param upvaluesCount Upvalues per frame
+ * @param tableSize Children per table, in BreakNotify and EvalRsp
+ * @param tableDepth Nesting depth of tables
+ * @param floodCount BreakNotify messages emitted on Continue
+ * @param floodRate BreakNotify messages per second on Continue, 0 for back to back
+ * @param capabilities Protocol capabilities the debuggee accepts
+ * @param staleDeltaEvery With stack deltas, every n-th step refers to a stack the IDE never saw,
+ * so the IDE has to ask for the full stack; 0 never
+ */
+data class DebuggeeScript(
+    val stackDepth: Int = 10,
+    val localsCount: Int = 20,
+    val upvaluesCount: Int = 5,
+    val tableSize: Int = 10,
+    val tableDepth: Int = 1,
+    val floodCount: Int = 0,
+    val floodRate: Int = 0,
+    val capabilities: Set<String> = setOf(
+        DebugCapabilities.BINARY_FRAMING, DebugCapabilities.DEFLATE, DebugCapabilities.CBOR,
+        DebugCapabilities.STACK_DELTA, DebugCapabilities.SHARED_MEMORY, DebugCapabilities.EVAL_BATCH
+    ),
+    val staleDeltaEvery: Int = 0
+)
+
+/**
+ * Pure-JVM stand-in for emmy_core, speaking the Emmy wire protocol.
+ *
+ * The debuggee answers the handshake, reports a break after ReadyReq and after every
+ * step, answers evaluations, batched or not, with generated tables and floods breaks
+ * on Continue.
+ * With stack deltas accepted, steps are reported as deltas moving the top frame and
+ * changing one of its locals; StackSnapshotReq is answered with the full stack.
+ * It talks over TCP or, like a debugger on the same host could, a Unix domain socket.
+ * A SharedMemoryReq moves all further traffic to the offered file, served by a thread
+ * polling it the way the IDE does.
+ * Payloads are generated once up front so the debuggee itself costs next to nothing.
+ */
+class FakeDebuggee(private val script: DebuggeeScript) : Closeable {
+
+    private val payloads = DebuggeePayloads(script)
+    private val breakJson = DebugProtocolCodec.toJson(payloads.breakNotification())
+    private val breakCbor = DebugProtocolCodec.toCbor(payloads.breakNotification())
+
+    private var server: ServerSocketChannel? = null
+    private var socketFile: Path? = null
+
+    @Volatile
+    private var channel: SocketChannel? = null
+    private var thread: Thread? = null
+
+    // Guards everything below, written by the serving and the flood thread
+    private val lock = Any()
+    private val output = FrameOutput()
+    private var format = FrameFormat.LINE
+    private var encoding = PayloadEncoding.JSON
+    private var deltas = false
+    private var snapshot = 0
+    private var steps = 0
+    private var deltaSize = 0
+    private var ring: RingChannel? = null
+
+    /**
+     * Size of one BreakNotify payload in bytes, in the encoding negotiated last
+     */
+    val breakPayloadSize: Int
+        get() = synchronized(lock) {
+            if (encoding == PayloadEncoding.CBOR) breakCbor.size else breakJson.toByteArray().size
+        }
+
+    /**
+     * Size of the last BreakDeltaNotify payload in bytes, 0 if none was sent
+     */
+    val deltaPayloadSize: Int
+        get() = synchronized(lock) { deltaSize }
+
+    /**
+     * Wait for the IDE on a local port, for ClientTransport
+     * @return the port listened on
+     */
+    fun listen(): Int {
+        val socket = ServerSocketChannel.open().bind(InetSocketAddress("127.0.0.1", 0))
+        server = socket
+        start { socket.accept() }
+        return (socket.localAddress as InetSocketAddress).port
+    }
+
+    /**
+     * Wait for the IDE on a Unix domain socket, for UnixSocketClientTransport.
+     * The socket file is removed on [close].
+     */
+    fun listen(socketPath: Path) {
+        Files.deleteIfExists(socketPath)
+        val socket = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(socketPath))
+        server = socket
+        socketFile = socketPath
+        start { socket.accept() }
+    }
+
+    /**
+     * Connect to an IDE listening on [port], for ServerTransport; retries while the IDE is still binding
+     */
+    fun connect(port: Int) {
+        connect(InetSocketAddress("127.0.0.1", port))
+    }
+
+    /**
+     * Connect to an IDE listening on a Unix domain socket, for UnixSocketServerTransport
+     */
+    fun connect(socketPath: Path) {
+        connect(UnixDomainSocketAddress.of(socketPath))
+    }
+
+    private fun connect(address: SocketAddress) {
+        start {
+            repeat(CONNECT_ATTEMPTS - 1) {
+                try {
+                    return@start SocketChannel.open(address)
+                } catch (e: IOException) {
+                    Thread.sleep(CONNECT_RETRY_MS)
+                }
+            }
+            SocketChannel.open(address)
+        }
+    }
+
+    private fun start(open: () -> SocketChannel) {
+        val serving = Thread({
+            try {
+                serve(open())
+            } catch (e: IOException) {
+                // Connection closed
+            }
+        }, "Fake Emmy Debuggee")
+        serving.isDaemon = true
+        thread = serving
+        serving.start()
+    }
+
+    private fun serve(socket: SocketChannel) {
+        channel = socket
+        socket.use {
+            val decoder = FrameDecoder()
+            while (decoder.readFrom(socket) >= 0) {
+                decoder.drain { cmd, payload -> onFrame(cmd, payload) }
+            }
+        }
+    }
+
+    private fun onFrame(cmd: Int, payload: ByteBuffer) {
+        when (parseCommand(cmd)) {
+            DebugCommand.InitReq -> {
+                val request = MessagePayload.copyOf(payload).let { message ->
+                    message.parse<InitRequest>().also { message.release() }
+                }
+                val accepted = request?.capabilities.orEmpty().filter { it in script.capabilities }
+                synchronized(lock) {
+                    write(DebugCommand.InitRsp, DebugProtocolCodec.toJson(InitResponse(accepted)))
+                    if (DebugCapabilities.BINARY_FRAMING in accepted) {
+                        format = FrameFormat.BINARY
+                        if (DebugCapabilities.DEFLATE in accepted) {
+                            output.compressionThreshold = 64 * 1024
+                        }
+                        if (DebugCapabilities.CBOR in accepted) {
+                            encoding = PayloadEncoding.CBOR
+                        }
+                    }
+                    deltas = DebugCapabilities.STACK_DELTA in accepted
+                }
+            }
+
+            DebugCommand.ReadyReq, DebugCommand.StackSnapshotReq -> sendBreak()
+
+            DebugCommand.SharedMemoryReq -> {
+                val request = MessagePayload.copyOf(payload).let { message ->
+                    message.parse<SharedMemoryRequest>().also { message.release() }
+                } ?: return
+                attachSharedMemory(request)
+            }
+
+            DebugCommand.ActionReq -> {
+                val action = MessagePayload.copyOf(payload).let { message ->
+                    message.parse<DebugActionRequest>().also { message.release() }
+                }?.action
+                when (action) {
+                    DebugAction.Continue.ordinal -> flood()
+                    DebugAction.Stop.ordinal -> close()
+                    else -> sendStep()
+                }
+            }
+
+            DebugCommand.EvalReq -> {
+                val request = MessagePayload.copyOf(payload).let { message ->
+                    message.parse<EvalRequest>().also { message.release() }
+                } ?: return
+                synchronized(lock) {
+                    write(DebugCommand.EvalRsp, DebugProtocolCodec.toJson(evaluate(request)))
+                }
+            }
+
+            DebugCommand.EvalBatchReq -> {
+                val request = MessagePayload.copyOf(payload).let { message ->
+                    message.parse<EvalBatchRequest>().also { message.release() }
+                } ?: return
+                val response = EvalBatchResponse(request.evals.map(::evaluate))
+                synchronized(lock) {
+                    write(DebugCommand.EvalBatchRsp, DebugProtocolCodec.toJson(response))
+                }
+            }
+
+            else -> {
+                // Breakpoints are accepted and ignored
+            }
+        }
+    }
+
+    private fun attachSharedMemory(request: SharedMemoryRequest) {
+        val region = try {
+            SharedMemoryRegion.open(File(request.path))
+        } catch (e: IOException) {
+            synchronized(lock) {
+                write(DebugCommand.SharedMemoryRsp, DebugProtocolCodec.toJson(SharedMemoryResponse(false, e.message)))
+            }
+            return
+        }
+        synchronized(lock) {
+            // The last message on the socket, everything after it goes through the rings
+            write(DebugCommand.SharedMemoryRsp, DebugProtocolCodec.toJson(SharedMemoryResponse(true)))
+            output.compressionThreshold = -1
+            ring = region.channel
+        }
+        val polling = Thread({ pollRing(region.channel) }, "Fake Emmy Debuggee Ring")
+        polling.isDaemon = true
+        polling.start()
+    }
+
+    private fun pollRing(channel: RingChannel) {
+        val decoder = FrameDecoder()
+        val idle = RingIdleStrategy()
+        try {
+            while (channel.isOpen) {
+                if (decoder.readFrom(channel) > 0) {
+                    decoder.drain { cmd, payload -> onFrame(cmd, payload) }
+                    idle.reset()
+                } else {
+                    idle.idle()
+                }
+            }
+        } catch (e: IOException) {
+            // Closed
+        }
+    }
+
+    private fun sendBreak() {
+        synchronized(lock) {
+            snapshot = FULL_SNAPSHOT
+            write(DebugCommand.BreakNotify, breakJson, breakCbor)
+        }
+    }
+
+    private fun evaluate(request: EvalRequest): EvalResponse {
+        val value = payloads.table(request.expr, request.depth.coerceAtMost(script.tableDepth))
+        return EvalResponse(request.seq, true, null, value)
+    }
+
+    private fun sendStep() {
+        synchronized(lock) {
+            if (!deltas) {
+                sendBreak()
+                return
+            }
+            steps++
+            val stale = script.staleDeltaEvery > 0 && steps % script.staleDeltaEvery == 0
+            val base = if (stale) snapshot + STALE_OFFSET else snapshot
+            val delta = payloads.breakDelta(base, steps)
+            snapshot = delta.snapshot
+            val json = DebugProtocolCodec.toJson(delta)
+            val cbor = if (encoding == PayloadEncoding.CBOR) DebugProtocolCodec.toCbor(delta) else null
+            deltaSize = cbor?.size ?: json.toByteArray().size
+            write(DebugCommand.BreakDeltaNotify, json, cbor)
+        }
+    }
+
+    private fun flood() {
+        if (script.floodCount <= 0) return
+        val flooding = Thread({
+            val interval = if (script.floodRate > 0) TimeUnit.SECONDS.toNanos(1) / script.floodRate else 0
+            var next = System.nanoTime()
+            try {
+                repeat(script.floodCount) {
+                    if (interval > 0) {
+                        next += interval
+                        LockSupport.parkNanos(next - System.nanoTime())
+                    }
+                    sendBreak()
+                }
+            } catch (e: IOException) {
+                // Connection closed
+            }
+        }, "Fake Emmy Debuggee Flood")
+        flooding.isDaemon = true
+        flooding.start()
+    }
+
+    private fun write(command: DebugCommand, json: String, cbor: ByteArray? = null) {
+        val target = ring ?: channel ?: throw IOException("Not connected")
+        output.writeMessage(format, RawMessage(command, json, cbor), encoding)
+        while (!output.isEmpty) {
+            output.flushTo(target)
+            if (!output.isEmpty && target is RingChannel) {
+                // Ring full, the IDE is draining it
+                Thread.onSpinWait()
+            }
+        }
+    }
+
+    override fun close() {
+        try {
+            synchronized(lock) { ring?.close() }
+            channel?.close()
+            server?.close()
+            socketFile?.let(Files::deleteIfExists)
+        } catch (e: IOException) {
+            // Ignore
+        }
+    }
+
+    companion object {
+        private const val CONNECT_ATTEMPTS = 50
+        private const val CONNECT_RETRY_MS = 100L
+        private const val FULL_SNAPSHOT = 1
+        private const val STALE_OFFSET = 1000
+    }
+
+    /**
+     * Message with a pre-rendered JSON payload and optionally its CBOR form;
+     * without one, CBOR is transcoded from the JSON
+     */
+    private class RawMessage(
+        command: DebugCommand,
+        private val json: String,
+        private val cbor: ByteArray?
+    ) : DebugMessage {
+        override val cmd: Int = command.ordinal
+
+        override fun toJSON(): String = json
+
+        override fun writeJSON(writer: JsonWriter) {
+            if (writer is CborWriter && cbor != null) {
+                writer.rawValue(cbor)
+            } else {
+                writer.jsonValue(json)
+            }
+        }
+    }
+}
+
+/**
+ * Generates the values a [DebuggeeScript] describes: locals alternate between tables
+ * and scalars, every third table field is a nested table
+ */
+class DebuggeePayloads(private val script: DebuggeeScript) {
+
+    /**
+     * Call stack of a break, as sent in BreakNotify
+     */
+    fun breakNotification(): BreakpointNotification {
+        return BreakpointNotification(stack(), snapshot = 1)
+    }
+
+    /**
+     * Stack of the [step]-th step relative to snapshot [base], as sent in BreakDeltaNotify:
+     * the top frame moved and one of its locals changed, the callers are untouched
+     */
+    fun breakDelta(base: Int, step: Int): BreakDeltaNotification {
+        val stacks = (0 until script.stackDepth).map { level ->
+            if (level == 0) {
+                DebugStackFrameDelta(file(level), line(level) + 1 + step % 5, functionName(level), level, level,
+                    localVariables = listOf(scalar("local_1", step)), upvalueVariables = emptyList())
+            } else {
+                DebugStackFrameDelta(file(level), line(level), functionName(level), level, level,
+                    localVariables = emptyList(), upvalueVariables = emptyList())
+            }
+        }
+        return BreakDeltaNotification(base + 1, base, stacks)
+    }
+
+    /**
+     * Table value named [name] nested [depth] levels deep, as sent in EvalRsp
+     */
+    fun table(name: String, depth: Int): DebugVariable {
+        val children = if (depth <= 0) null else (0 until script.tableSize).map { i ->
+            if (i % 3 == 0) table("field_$i", depth - 1) else scalar("field_$i", i)
+        }
+        return DebugVariable(name, LuaValueType.TSTRING.ordinal, "table: 0x${name.hashCode().toString(16)}",
+            LuaValueType.TTABLE.ordinal, "table", name.hashCode() and 0xffff, children)
+    }
+
+    private fun stack(): List<DebugStackFrame> {
+        return (0 until script.stackDepth).map { level ->
+            DebugStackFrame(
+                file = file(level),
+                line = line(level),
+                functionName = functionName(level),
+                level = level,
+                localVariables = (0 until script.localsCount).map { i ->
+                    if (i % 2 == 0) table("local_$i", script.tableDepth) else scalar("local_$i", i)
+                },
+                upvalueVariables = (0 until script.upvaluesCount).map { i -> scalar("upvalue_$i", i) }
+            )
+        }
+    }
+
+    private fun file(level: Int) = "scripts/game/module_${level % 7}.lua"
+
+    private fun line(level: Int) = 10 + level * 3
+
+    private fun functionName(level: Int) = "function_$level"
+
+    private fun scalar(name: String, i: Int): DebugVariable {
+        return if (i % 4 == 1) {
+            DebugVariable(name, LuaValueType.TSTRING.ordinal, "\"value of $name\"",
+                LuaValueType.TSTRING.ordinal, "string", 0, null)
+        } else {
+            DebugVariable(name, LuaValueType.TSTRING.ordinal, (i * 31).toString(),
+                LuaValueType.TNUMBER.ordinal, "number", 0, null)
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.benchmark
+
+import com.google.gson.Gson
+import com.tang.intellij.lua.debugger.model.*
+import com.tang.intellij.lua.debugger.transport.MessagePayload
+import com.tang.intellij.lua.debugger.transport.parse
+import org.openjdk.jmh.annotations.*
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the shared [DebugProtocolCodec] with the previous reflective path (a new Gson per
+ * message) on BreakNotify and EvalRsp payloads generated by [DebuggeePayloads], and JSON
+ * with CBOR payloads.
+ * Payloads are read from a [MessagePayload], as the transport hands them to the handler.
+ *
+ * Run with ./gradlew codecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ProtocolCodecBenchmark {
+
+    /**
+     * Children per table; upvalue-heavy frames are dominated by table size
+     */
+    @Param("5", "20")
+    @JvmField
+    var tableSize = 0
+
+    private lateinit var breakPayload: MessagePayload
+    private lateinit var evalPayload: MessagePayload
+    private lateinit var breakCbor: MessagePayload
+    private lateinit var evalCbor: MessagePayload
+    private val evalRequest = EvalRequest("self.components", 0, 0, 2, 1)
+
+    @Setup
+    fun setup() {
+        val payloads = DebuggeePayloads(DebuggeeScript(tableSize = tableSize))
+        breakPayload = MessagePayload.of(DebugProtocolCodec.toJson(payloads.breakNotification()))
+        evalPayload = MessagePayload.of(DebugProtocolCodec.toJson(EvalResponse(1, true, null, payloads.table("self", 3))))
+        breakCbor = MessagePayload.copyOf(ByteBuffer.wrap(DebugProtocolCodec.toCbor(payloads.breakNotification())))
+        evalCbor = MessagePayload.copyOf(ByteBuffer.wrap(DebugProtocolCodec.toCbor(EvalResponse(1, true, null, payloads.table("self", 3)))))
+    }
+
+    @TearDown
+    fun tearDown() {
+        breakPayload.release()
+        evalPayload.release()
+        breakCbor.release()
+        evalCbor.release()
+    }
+
+    @Benchmark
+    fun decodeBreakNotifyReflective(): BreakpointNotification {
+        return Gson().fromJson(breakPayload.reader(), BreakpointNotification::class.java)
+    }
+
+    @Benchmark
+    fun decodeBreakNotifyCodec(): BreakpointNotification? {
+        return DebugProtocolCodec.fromJson(breakPayload.reader(), BreakpointNotification::class.java)
+    }
+
+    @Benchmark
+    fun decodeBreakNotifyCbor(): BreakpointNotification? {
+        return breakCbor.parse<BreakpointNotification>()
+    }
+
+    @Benchmark
+    fun decodeEvalResponseReflective(): EvalResponse {
+        return Gson().fromJson(evalPayload.reader(), EvalResponse::class.java)
+    }
+
+    @Benchmark
+    fun decodeEvalResponseCodec(): EvalResponse? {
+        return DebugProtocolCodec.fromJson(evalPayload.reader(), EvalResponse::class.java)
+    }
+
+    @Benchmark
+    fun decodeEvalResponseCbor(): EvalResponse? {
+        return evalCbor.parse<EvalResponse>()
+    }
+
+    @Benchmark
+    fun encodeEvalRequestReflective(): String {
+        return Gson().toJson(evalRequest)
+    }
+
+    @Benchmark
+    fun encodeEvalRequestCodec(): String {
+        return DebugProtocolCodec.toJson(evalRequest)
+    }
+
+    @Benchmark
+    fun encodeEvalRequestCbor(): ByteArray {
+        return DebugProtocolCodec.toCbor(evalRequest)
+    }
+}
@@ -19,7 +19,6 @@ package com.tang.intellij.lua.debugger.breakpoint
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.util.Key
 import com.intellij.xdebugger.XDebuggerManager
 import com.intellij.xdebugger.XSourcePosition
 import com.intellij.xdebugger.breakpoints.XLineBreakpoint
@@ -43,7 +42,7 @@ class DebugBreakpointManager(private val project: Project) {
 
     private val logger = Logger.getInstance(javaClass)
 
-    // Breakpoint ID management
+    // Breakpoint ID management, per manager: each connection numbers its breakpoints itself
     private val idCounter = AtomicInteger(0)
     private val breakpointById = ConcurrentHashMap<Int, DebugBreakpoint>()
     private val idByBreakpoint = ConcurrentHashMap<XLineBreakpoint<*>, Int>()
@@ -51,41 +50,32 @@ class DebugBreakpointManager(private val project: Project) {
     // Callback for sending breakpoint requests
     var onSendRequest: ((request: Any) -> Unit)? = null
 
-    companion object {
-        /**
-         * User data key for storing breakpoint ID
-         */
-        private val BREAKPOINT_ID_KEY = Key.create<Int>("lua.debugger.breakpoint.id")
-    }
-
     /**
-     * Initialize breakpoints - send all existing breakpoints to debugger
-     * This should be called after the debugger connects
+     * Initialize breakpoints - register all existing breakpoints and build the request
+     * adding them to the debugger, sent as part of the handshake after it connects.
+     * Only reading breakpoint positions takes the read lock.
+     * @return the request, or null if there are no breakpoints
      */
-    fun initializeBreakpoints() {
-        ApplicationManager.getApplication().runReadAction {
-            val breakpoints = getAllLuaBreakpoints()
-
-            logger.info("Initializing ${breakpoints.size} breakpoints")
-
-            val debugBreakpoints = mutableListOf<DebugBreakpoint>()
+    fun prepareBreakpoints(): AddBreakpointRequest? {
+        val positions = ApplicationManager.getApplication().runReadAction<List<Pair<XLineBreakpoint<*>, XSourcePosition>>> {
+            getAllLuaBreakpoints().mapNotNull { xBreakpoint ->
+                xBreakpoint.sourcePosition?.let { xBreakpoint to it }
+            }
+        }
 
-            breakpoints.forEach { xBreakpoint ->
-                xBreakpoint.sourcePosition?.let { position ->
-                    convertToDebugBreakpoint(position, xBreakpoint)?.let { debugBp ->
-                        val id = registerBreakpoint(xBreakpoint, debugBp)
-                        xBreakpoint.putUserData(BREAKPOINT_ID_KEY, id)
-                        debugBreakpoints.add(debugBp)
+        logger.info("Initializing ${positions.size} breakpoints")
 
-                        logger.info("Registered breakpoint: ${debugBp.file}:${debugBp.line} (ID: $id)")
-                    }
-                }
-            }
+        val debugBreakpoints = mutableListOf<DebugBreakpoint>()
+        positions.forEach { (xBreakpoint, position) ->
+            convertToDebugBreakpoint(position, xBreakpoint)?.let { debugBp ->
+                val id = registerBreakpoint(xBreakpoint, debugBp)
+                debugBreakpoints.add(debugBp)
 
-            if (debugBreakpoints.isNotEmpty()) {
-                sendAddRequest(debugBreakpoints)
+                logger.info("Registered breakpoint: ${debugBp.file}:${debugBp.line} (ID: $id)")
             }
         }
+
+        return if (debugBreakpoints.isNotEmpty()) AddBreakpointRequest(debugBreakpoints) else null
     }
 
     /**
@@ -94,7 +84,6 @@ class DebugBreakpointManager(private val project: Project) {
     fun onBreakpointAdded(position: XSourcePosition, xBreakpoint: XLineBreakpoint<*>) {
         convertToDebugBreakpoint(position, xBreakpoint)?.let { debugBp ->
             val id = registerBreakpoint(xBreakpoint, debugBp)
-            xBreakpoint.putUserData(BREAKPOINT_ID_KEY, id)
 
             logger.info("Added breakpoint: ${debugBp.file}:${debugBp.line} (ID: $id)")
 
@@ -106,9 +95,8 @@ class DebugBreakpointManager(private val project: Project) {
      * Unregister a breakpoint
      */
     fun onBreakpointRemoved(position: XSourcePosition, xBreakpoint: XLineBreakpoint<*>) {
-        val id = xBreakpoint.getUserData(BREAKPOINT_ID_KEY) ?: return
+        val id = idByBreakpoint.remove(xBreakpoint) ?: return
         val debugBp = breakpointById.remove(id) ?: return
-        idByBreakpoint.remove(xBreakpoint)
 
         logger.info("Removed breakpoint: ${debugBp.file}:${debugBp.line} (ID: $id)")
 
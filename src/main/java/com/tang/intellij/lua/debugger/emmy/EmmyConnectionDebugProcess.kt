@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.emmy
+
+import com.intellij.xdebugger.XDebugSession
+import com.tang.intellij.lua.debugger.transport.AcceptedTransport
+
+/**
+ * Debug process for one of several debuggers connected to the same server, e.g. the
+ * services of a skynet cluster, started by [EmmyDebugProcess] in multi-client mode.
+ *
+ * It serves the connection it is handed, with breakpoints, stack and evaluations of its
+ * own, and ends with it.
+ */
+class EmmyConnectionDebugProcess(
+    session: XDebugSession,
+    private val connection: AcceptedTransport,
+    private val sourceRoots: List<String>
+) : EmmyDebugProcessBase(session) {
+
+    override fun getSourceRoots(): List<String> = sourceRoots
+
+    override fun setupTransport() {
+        transport = connection.apply {
+            handler = StandardTransportHandler()
+            start()
+        }
+    }
+}
@@ -59,7 +59,13 @@ class EmmyDebugConfigurationType : ConfigurationType {
 
 enum class EmmyDebugTransportType(val desc: String) {
     TCP_CLIENT("Tcp ( IDE connect debugger )"),
-    TCP_SERVER("Tcp ( Debugger connect IDE )");
+    TCP_SERVER("Tcp ( Debugger connect IDE )"),
+    UNIX_SOCKET_CLIENT("Unix socket ( IDE connect debugger )"),
+    UNIX_SOCKET_SERVER("Unix socket ( Debugger connect IDE )"),
+    REPLAY("Replay captured traffic");
+
+    val isUnixSocket: Boolean
+        get() = this == UNIX_SOCKET_CLIENT || this == UNIX_SOCKET_SERVER
 
     override fun toString(): String {
         return desc
@@ -89,6 +95,13 @@ class EmmyDebugConfiguration(project: Project, factory: EmmyDebuggerConfiguratio
     var port = 9966
     var winArch = EmmyWinArch.X64
     var pipeName = "emmy"
+    var socketPath = "/tmp/emmy.sock"
+    var captureFile = ""
+
+    /**
+     * In server modes, debug every debugger connecting while one is connected in a session of its own
+     */
+    var multiClient = false
     
     /**
      * Source roots for path resolution during debugging.
@@ -115,6 +128,9 @@ class EmmyDebugConfiguration(project: Project, factory: EmmyDebuggerConfiguratio
         JDOMExternalizerUtil.writeField(element, "HOST", host)
         JDOMExternalizerUtil.writeField(element, "PORT", port.toString())
         JDOMExternalizerUtil.writeField(element, "PIPE", pipeName)
+        JDOMExternalizerUtil.writeField(element, "SOCKET_PATH", socketPath)
+        JDOMExternalizerUtil.writeField(element, "CAPTURE_FILE", captureFile)
+        JDOMExternalizerUtil.writeField(element, "MULTI_CLIENT", multiClient.toString())
         JDOMExternalizerUtil.writeField(element, "WIN_ARCH", winArch.ordinal.toString())
         JDOMExternalizerUtil.writeField(element, "SOURCE_ROOTS", sourceRoots.joinToString(";"))
     }
@@ -130,6 +146,15 @@ class EmmyDebugConfiguration(project: Project, factory: EmmyDebuggerConfiguratio
         JDOMExternalizerUtil.readField(element, "PIPE")?.let {
             pipeName = it
         }
+        JDOMExternalizerUtil.readField(element, "SOCKET_PATH")?.let {
+            socketPath = it
+        }
+        JDOMExternalizerUtil.readField(element, "CAPTURE_FILE")?.let {
+            captureFile = it
+        }
+        JDOMExternalizerUtil.readField(element, "MULTI_CLIENT")?.let {
+            multiClient = it.toBoolean()
+        }
         JDOMExternalizerUtil.readField(element, "TYPE")?.let { value ->
             val i = value.toInt()
             type = EmmyDebugTransportType.values().find { it.ordinal == i } ?: EmmyDebugTransportType.TCP_SERVER
@@ -16,21 +16,38 @@
 
 package com.tang.intellij.lua.debugger.emmy
 
+import com.intellij.execution.ExecutionException
 import com.intellij.execution.ui.ConsoleViewContentType
 import com.intellij.openapi.application.ApplicationManager
+import com.intellij.util.containers.ContainerUtil
+import com.intellij.xdebugger.XDebugProcess
+import com.intellij.xdebugger.XDebugProcessStarter
 import com.intellij.xdebugger.XDebugSession
+import com.intellij.xdebugger.XDebugSessionListener
+import com.intellij.xdebugger.XDebuggerManager
 import com.tang.intellij.lua.debugger.LogConsoleType
 import com.tang.intellij.lua.debugger.model.DebugCommand
+import com.tang.intellij.lua.debugger.model.DebugMessage
+import com.tang.intellij.lua.debugger.transport.AcceptedTransport
+import com.tang.intellij.lua.debugger.transport.MessagePayload
+import com.tang.intellij.lua.debugger.transport.ReplayTransport
+import com.tang.intellij.lua.debugger.transport.ServerTransport
+import com.tang.intellij.lua.debugger.transport.TrafficRecorder
 import com.tang.intellij.lua.debugger.transport.TransportFactory
 import com.tang.intellij.lua.debugger.transport.TransportHandler
 import com.tang.intellij.lua.debugger.transport.TransportMode
+import java.io.File
 
 /**
  * Emmy Debug Process for the "Emmy Debugger(NEW)" configuration type.
  *
- * Supports two TCP modes configured via [EmmyDebugConfiguration]:
- *  - TCP_CLIENT: IDE connects to a running Lua process.
- *  - TCP_SERVER: IDE listens; the Lua process connects to the IDE.
+ * Supports the transport modes configured via [EmmyDebugConfiguration]:
+ *  - TCP_CLIENT / UNIX_SOCKET_CLIENT: IDE connects to a running Lua process.
+ *  - TCP_SERVER / UNIX_SOCKET_SERVER: IDE listens; the Lua process connects to the IDE.
+ *  - REPLAY: a capture file recorded by [TrafficRecorder] is played back, no Lua process involved.
+ *
+ * In server modes with [EmmyDebugConfiguration.multiClient], debuggers connecting while
+ * one is connected are debugged in sessions of their own, see [EmmyConnectionDebugProcess].
  */
 class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
 
@@ -38,18 +55,70 @@ class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
 
     override fun getSourceRoots(): List<String> = configuration.sourceRoots
 
+    private val transportMode = when (configuration.type) {
+        EmmyDebugTransportType.TCP_CLIENT,
+        EmmyDebugTransportType.UNIX_SOCKET_CLIENT,
+        EmmyDebugTransportType.REPLAY -> TransportMode.CLIENT
+        EmmyDebugTransportType.TCP_SERVER,
+        EmmyDebugTransportType.UNIX_SOCKET_SERVER -> TransportMode.SERVER
+    }
+
+    // Sessions of further debuggers in multi-client mode, stopped with this one
+    private val connectionSessions = ContainerUtil.createConcurrentList<XDebugSession>()
+
     override fun setupTransport() {
-        val mode = when (configuration.type) {
-            EmmyDebugTransportType.TCP_CLIENT -> TransportMode.CLIENT
-            EmmyDebugTransportType.TCP_SERVER -> TransportMode.SERVER
+        val newTransport = when (configuration.type) {
+            EmmyDebugTransportType.UNIX_SOCKET_CLIENT,
+            EmmyDebugTransportType.UNIX_SOCKET_SERVER ->
+                TransportFactory.createUnixSocket(transportMode, configuration.socketPath)
+            EmmyDebugTransportType.REPLAY -> ReplayTransport(File(configuration.captureFile))
+            else -> TransportFactory.create(transportMode, configuration.host, configuration.port)
         }
 
-        transport = TransportFactory.create(mode, configuration.host, configuration.port).apply {
+        if (configuration.multiClient && newTransport is ServerTransport) {
+            newTransport.additionalConnections = ::startConnectionSession
+        }
+
+        transport = newTransport.apply {
             handler = EmmyTransportHandler()
             start()
         }
     }
 
+    override fun stop() {
+        super.stop()
+        connectionSessions.forEach { it.stop() }
+    }
+
+    /**
+     * Debug a further connected debugger in a session of its own
+     */
+    private fun startConnectionSession(connection: AcceptedTransport) {
+        ApplicationManager.getApplication().invokeLater {
+            if (transport == null || session.isStopped) {
+                connection.stop()
+                return@invokeLater
+            }
+            val sourceRoots = configuration.sourceRoots.toList()
+            try {
+                val child = XDebuggerManager.getInstance(session.project)
+                    .startSessionAndShowTab("${session.sessionName} (${connection.peer})", null, object : XDebugProcessStarter() {
+                        override fun start(session: XDebugSession): XDebugProcess =
+                            EmmyConnectionDebugProcess(session, connection, sourceRoots)
+                    })
+                connectionSessions.add(child)
+                child.addSessionListener(object : XDebugSessionListener {
+                    override fun sessionStopped() {
+                        connectionSessions.remove(child)
+                    }
+                })
+            } catch (e: ExecutionException) {
+                connection.stop()
+                error("Failed to debug ${connection.peer}: ${e.message}")
+            }
+        }
+    }
+
     /**
      * Transport handler with server-mode reconnect support.
      *
@@ -61,9 +130,7 @@ class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
         override fun onConnect(success: Boolean) {
             if (success) {
                 isConnected = true
-                ApplicationManager.getApplication().runReadAction {
-                    sendInitialization()
-                }
+                sendInitialization()
             } else {
                 stop()
             }
@@ -73,8 +140,10 @@ class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
             if (isConnected) {
                 isConnected = false
                 println("Disconnected from debugger", LogConsoleType.NORMAL, ConsoleViewContentType.SYSTEM_OUTPUT)
+                cancelEvaluations("Disconnected from debugger")
+                forgetStack()
 
-                if (configuration.type == EmmyDebugTransportType.TCP_SERVER) {
+                if (transportMode == TransportMode.SERVER) {
                     // Keep the server socket alive; ServerTransport will accept the next connection.
                     println(
                         "Server mode: waiting for new connection...",
@@ -82,6 +151,9 @@ class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
                         ConsoleViewContentType.SYSTEM_OUTPUT
                     )
                     breakpointManager.clear()
+                } else if (configuration.type == EmmyDebugTransportType.REPLAY) {
+                    // Keep the session so the last suspend state can still be inspected
+                    println("Replay finished", LogConsoleType.NORMAL, ConsoleViewContentType.SYSTEM_OUTPUT)
                 } else {
                     stop()
                     session.stop()
@@ -89,8 +161,12 @@ class EmmyDebugProcess(session: XDebugSession) : EmmyDebugProcessBase(session) {
             }
         }
 
-        override fun onMessage(command: DebugCommand, json: String) {
-            handleMessage(command, json)
+        override fun onMessage(command: DebugCommand, payload: MessagePayload) {
+            handleMessage(command, payload)
+        }
+
+        override fun onMessageDropped(message: DebugMessage) {
+            handleDroppedMessage(message)
         }
 
         override fun onError(message: String, exception: Throwable?) {
@@ -17,8 +17,13 @@
 package com.tang.intellij.lua.debugger.emmy
 
 import com.intellij.execution.ui.ConsoleViewContentType
+import com.intellij.execution.ui.RunnerLayoutUi
+import com.intellij.execution.ui.layout.PlaceInGrid
+import com.intellij.icons.AllIcons
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.xdebugger.XDebugSession
 import com.intellij.xdebugger.XSourcePosition
 import com.intellij.xdebugger.breakpoints.XBreakpointHandler
@@ -26,15 +31,21 @@ import com.intellij.xdebugger.breakpoints.XBreakpointProperties
 import com.intellij.xdebugger.breakpoints.XLineBreakpoint
 import com.intellij.xdebugger.evaluation.XDebuggerEditorsProvider
 import com.intellij.xdebugger.frame.XSuspendContext
+import com.intellij.xdebugger.ui.XDebugTabLayouter
 import com.tang.intellij.lua.debugger.*
 import com.tang.intellij.lua.debugger.breakpoint.DebugBreakpointManager
 import com.tang.intellij.lua.debugger.model.*
 import com.tang.intellij.lua.debugger.transport.DebugTransport
+import com.tang.intellij.lua.debugger.transport.MessagePayload
+import com.tang.intellij.lua.debugger.transport.RequestCorrelator
 import com.tang.intellij.lua.debugger.transport.TransportHandler
+import com.tang.intellij.lua.debugger.transport.TransportMetrics
+import com.tang.intellij.lua.debugger.transport.evalSeqs
+import com.tang.intellij.lua.debugger.transport.parse
 import com.tang.intellij.lua.psi.LuaFileManager
 import com.tang.intellij.lua.psi.LuaFileUtil
 import java.io.File
-import java.util.concurrent.ConcurrentHashMap
+import java.util.IdentityHashMap
 
 /**
  * Base class for Emmy debugger processes.
@@ -49,19 +60,80 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
 
     // Core components
     protected var transport: DebugTransport? = null
+        set(value) {
+            field = value
+            value?.let { transportMetrics = it.metrics }
+        }
+
+    // Metrics of the last transport, kept after stop for inspection and export
+    @Volatile
+    private var transportMetrics: TransportMetrics? = null
     val breakpointManager = DebugBreakpointManager(session.project)
 
-    // Evaluation handlers keyed by request sequence number
-    private val evalHandlers = ConcurrentHashMap<Int, EvalHandler>()
+    // Evaluations waiting for their response, keyed by request sequence number
+    private val evalRequests = RequestCorrelator<EvalHandler>({ handler, error -> handler.onError(error) }) {
+        transportMetrics
+    }.apply {
+        timeoutMs = Registry.intValue("emmy.debugger.eval.timeout.ms", RequestCorrelator.DEFAULT_TIMEOUT_MS.toInt()).toLong()
+        maxInFlight = Registry.intValue("emmy.debugger.eval.max.in.flight", RequestCorrelator.DEFAULT_MAX_IN_FLIGHT)
+    }
 
     protected var isConnected = false
 
+    // Evaluation results of the current suspend state
+    private val evalCache = EvalResultCache(
+        Registry.intValue("emmy.debugger.eval.cache.size", EvalResultCache.DEFAULT_CAPACITY)
+    )
+
+    // Top frame tables being evaluated ahead of the user expanding them
+    @Volatile
+    private var prefetch: EvalPrefetch? = null
+
+    // Stack of the last break, for stack deltas, and the frames shown for it
+    private val stackSnapshots = StackSnapshots()
+    private var shownFrames: Map<LazyStackFrame, EmmyDebugStackFrame> = emptyMap()
+
+    // Parent of what lives as long as the session, disposed on stop or with the project
+    private val disposable = Disposer.newDisposable("Emmy debug session").also {
+        Disposer.register(session.project, it)
+    }
+
+    // Debugger file names to project files, for the lifetime of the session
+    internal val sourcePositions = SourcePositionResolver(session.project) { getSourceRoots() }.also {
+        Disposer.register(disposable, it)
+    }
+
     /**
      * Evaluation result callback interface.
      */
     interface EvalHandler {
         fun onSuccess(variable: DebugVariable)
         fun onError(error: String)
+
+        /**
+         * Whether the result is no longer wanted, e.g. because its tree node is gone.
+         * Such evaluations are not sent, and their responses are dropped undecoded.
+         */
+        val isObsolete: Boolean
+            get() = false
+    }
+
+    /**
+     * An evaluation waiting for its response; obsolete once the debuggee has left the
+     * suspend state it was asked for in
+     */
+    private inner class PendingEval(val request: EvalRequest, val handler: EvalHandler) : EvalHandler {
+        override fun onSuccess(variable: DebugVariable) {
+            evalCache.put(request.generation, request.stackLevel, request.expr, request.depth, variable)
+            handler.onSuccess(variable)
+        }
+
+        override fun onError(error: String) {
+            handler.onError(error)
+        }
+
+        override val isObsolete: Boolean
+            get() = request.generation != evalCache.generation || handler.isObsolete
     }
 
     /**
@@ -99,7 +171,11 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         transport?.stop()
         transport = null
         breakpointManager.clear()
-        evalHandlers.clear()
+        stopPrefetch()
+        evalRequests.cancelAll("Debug session stopped")
+        evalCache.invalidate()
+        forgetStack()
+        Disposer.dispose(disposable)
         isConnected = false
     }
 
@@ -108,30 +184,34 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
     // ================================================================================================
 
     protected fun sendInitialization() {
-        val helperPath = LuaFileUtil.getPluginVirtualFile("debugger/emmy/emmyHelper.lua")
-        val code = if (helperPath != null) {
-            File(helperPath).readText()
-        } else {
-            logger.error("Emmy helper file not found")
-            ""
-        }
         val extensions = LuaFileManager.extensions
-        send(InitRequest(code, extensions))
-        breakpointManager.initializeBreakpoints()
-        send(ReadyRequest())
+        var capabilities = transport?.capabilities ?: emptyArray()
+        if (Registry.`is`("emmy.debugger.stack.delta", true)) {
+            capabilities += DebugCapabilities.STACK_DELTA
+        }
+        // Deltas of a new connection never refer to stacks of the previous one
+        forgetStack()
+        // The debugger handles the handshake in order, so it goes out as one batch
+        val handshake = mutableListOf<DebugMessage>(InitRequest(helperCode, extensions, capabilities))
+        breakpointManager.prepareBreakpoints()?.let { handshake.add(it) }
+        handshake.add(ReadyRequest())
+        transport?.sendAll(handshake)
     }
 
     // ================================================================================================
     // MESSAGE HANDLING
     // ================================================================================================
 
-    protected fun handleMessage(command: DebugCommand, json: String) {
+    protected fun handleMessage(command: DebugCommand, payload: MessagePayload) {
         try {
             when (command) {
-                DebugCommand.BreakNotify    -> handleBreakNotification(json)
-                DebugCommand.EvalRsp        -> handleEvalResponse(json)
-                DebugCommand.LogNotify      -> handleLogNotification(json)
-                DebugCommand.AttachedNotify -> handleAttachedNotification(json)
+                DebugCommand.BreakNotify      -> handleBreakNotification(payload)
+                DebugCommand.BreakDeltaNotify -> handleBreakDelta(payload)
+                DebugCommand.EvalRsp          -> handleEvalResponse(payload)
+                DebugCommand.EvalBatchRsp     -> handleEvalBatchResponse(payload)
+                DebugCommand.LogNotify        -> handleLogNotification(payload)
+                DebugCommand.AttachedNotify   -> handleAttachedNotification(payload)
+                DebugCommand.InitRsp          -> logger.info("Debugger initialized")
                 else -> logger.warn("Unhandled command: $command")
             }
         } catch (e: Exception) {
@@ -139,10 +219,32 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         }
     }
 
-    private fun handleBreakNotification(json: String) {
-        val notification = parseMessage<BreakpointNotification>(json) ?: return
+    private fun handleBreakNotification(payload: MessagePayload) {
+        // Only frame headers are decoded here, variables wait for computeChildren
+        val snapshot = BreakNotifyDecoder.decodeSnapshot(payload.toByteArray()) ?: return
+        showStack(stackSnapshots.full(snapshot))
+    }
+
+    private fun handleBreakDelta(payload: MessagePayload) {
+        val stacks = payload.parse<BreakDeltaNotification>()?.let(stackSnapshots::apply)
+        if (stacks == null) {
+            logger.info("Stack delta does not apply, requesting full stack")
+            send(StackSnapshotRequest())
+            return
+        }
+        showStack(stacks)
+    }
 
-        val frames = notification.stacks.map { EmmyDebugStackFrame(it, this) }
+    private fun showStack(stacks: List<LazyStackFrame>) {
+        // A new suspend state, values of the previous one may have changed
+        stopPrefetch()
+        evalCache.invalidate()
+        // Frames a delta did not touch keep their source position and values
+        val previous = shownFrames
+        val frames = stacks.map { previous[it] ?: EmmyDebugStackFrame(it, this) }
+        shownFrames = frames.associateByTo(IdentityHashMap()) { it.stackData }
+        // Resolve the files of the frames in view together rather than one by one below
+        sourcePositions.resolveAll(stacks.take(SourcePositionResolver.VISIBLE_FRAMES).map { it.file })
         val topFrame = frames.firstOrNull { it.sourcePosition != null }
             ?: frames.firstOrNull { it.stackData.line > 0 }
             ?: frames.firstOrNull()
@@ -154,6 +256,7 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
 
         val stack = LuaExecutionStack(frames)
         stack.setTopFrame(topFrame)
+        startPrefetch(topFrame)
 
         val sourcePos = topFrame.sourcePosition
         val breakpoint = if (sourcePos != null) breakpointManager.getBreakpoint(sourcePos) else null
@@ -168,10 +271,71 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         }
     }
 
-    private fun handleEvalResponse(json: String) {
-        val response = parseMessage<EvalResponse>(json) ?: return
-        val handler = evalHandlers.remove(response.seq) ?: run {
-            logger.warn("No handler for eval response seq=${response.seq}")
+    /**
+     * Expand the tables of the frame shown first in the background, if enabled
+     */
+    private fun startPrefetch(frame: EmmyDebugStackFrame) {
+        if (!Registry.`is`("emmy.debugger.prefetch", false)) return
+        val data = frame.stackData
+        prefetch = EvalPrefetch(
+            this,
+            data.level,
+            data.localVariables,
+            Registry.intValue("emmy.debugger.prefetch.budget.bytes", DEFAULT_PREFETCH_BYTES),
+            Registry.intValue("emmy.debugger.prefetch.budget.ms", DEFAULT_PREFETCH_MS).toLong()
+        ).also { it.start() }
+    }
+
+    private fun stopPrefetch() {
+        prefetch?.cancel()
+        prefetch = null
+    }
+
+    private fun handleEvalResponse(payload: MessagePayload) {
+        val stale = dropStaleEvaluations(payload) ?: return
+        payload.parse<EvalResponse>()?.takeIf { it.seq !in stale }?.let(::completeEvaluation)
+    }
+
+    private fun handleEvalBatchResponse(payload: MessagePayload) {
+        val stale = dropStaleEvaluations(payload) ?: return
+        payload.parse<EvalBatchResponse>()?.results?.forEach { result ->
+            if (result.seq !in stale) completeEvaluation(result)
+        }
+    }
+
+    /**
+     * Complete the evaluations of a response that nobody wants any more, reading only
+     * their sequence numbers. When stepping quickly most responses are such, and decoding
+     * their values would delay the responses that are still wanted.
+     * @return the sequence numbers dropped, or null if nothing in the response is wanted
+     */
+    private fun dropStaleEvaluations(payload: MessagePayload): Set<Int>? {
+        val seqs = payload.evalSeqs()
+        var stale: MutableSet<Int>? = null
+        for (seq in seqs) {
+            val pending = evalRequests.peek(seq)
+            if (pending == null) {
+                // Timed out or cancelled already, nothing left to complete
+                transportMetrics?.evalsOrphaned?.incrementAndGet()
+            } else if (pending.isObsolete) {
+                evalRequests.cancel(seq, "Evaluation no longer needed")
+                transportMetrics?.evalsStale?.incrementAndGet()
+            } else {
+                continue
+            }
+            (stale ?: HashSet<Int>().also { stale = it }).add(seq)
+        }
+        return when {
+            stale == null -> emptySet()
+            stale!!.size == seqs.size -> null
+            else -> stale
+        }
+    }
+
+    private fun completeEvaluation(response: EvalResponse) {
+        transportMetrics?.recordEvalResponse(response.seq)
+        val handler = evalRequests.complete(response.seq) ?: run {
+            logger.debug("Orphaned eval response seq=${response.seq}")
             return
         }
         if (response.success && response.value != null) {
@@ -181,8 +345,8 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         }
     }
 
-    private fun handleLogNotification(json: String) {
-        val notification = parseMessage<LogNotification>(json) ?: return
+    private fun handleLogNotification(payload: MessagePayload) {
+        val notification = payload.parse<LogNotification>() ?: return
         val contentType = when (notification.type) {
             1    -> ConsoleViewContentType.LOG_WARNING_OUTPUT
             2    -> ConsoleViewContentType.ERROR_OUTPUT
@@ -195,8 +359,8 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
      * Called when the debugger sends an AttachedNotify message.
      * Override to log the attached Lua state address.
      */
-    protected open fun handleAttachedNotification(json: String) {
-        val notification = parseMessage<AttachedNotification>(json) ?: return
+    protected open fun handleAttachedNotification(payload: MessagePayload) {
+        val notification = payload.parse<AttachedNotification>() ?: return
         println(
             "Attached to lua state 0x${notification.state.toString(16)}",
             LogConsoleType.NORMAL,
@@ -209,7 +373,7 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
     // ================================================================================================
 
     override fun run() {
-        send(DebugActionRequest(DebugAction.Continue))
+        resume(DebugAction.Continue)
     }
 
     override fun startPausing() {
@@ -217,15 +381,25 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
     }
 
     override fun startStepOver(context: XSuspendContext?) {
-        send(DebugActionRequest(DebugAction.StepOver))
+        resume(DebugAction.StepOver)
     }
 
     override fun startStepInto(context: XSuspendContext?) {
-        send(DebugActionRequest(DebugAction.StepIn))
+        resume(DebugAction.StepIn)
     }
 
     override fun startStepOut(context: XSuspendContext?) {
-        send(DebugActionRequest(DebugAction.StepOut))
+        resume(DebugAction.StepOut)
+    }
+
+    /**
+     * Leave the current suspend context: values asked for in it can no longer arrive
+     */
+    private fun resume(action: DebugAction) {
+        stopPrefetch()
+        evalRequests.cancelAll("Debugger resumed")
+        evalCache.invalidate()
+        send(DebugActionRequest(action))
     }
 
     override fun runToPosition(position: XSourcePosition, context: XSuspendContext?) {
@@ -266,16 +440,57 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
 
     override fun getEditorsProvider(): XDebuggerEditorsProvider = editorsProvider
 
+    // ================================================================================================
+    // UI
+    // ================================================================================================
+
+    override fun createTabLayouter(): XDebugTabLayouter {
+        return object : XDebugTabLayouter() {
+            override fun registerAdditionalContent(ui: RunnerLayoutUi) {
+                val panel = TransportMetricsPanel(session.project) { transportMetrics }
+                val content = ui.createContent(
+                    "EmmyTransportMetrics",
+                    panel,
+                    "Transport",
+                    AllIcons.Debugger.Overhead,
+                    null
+                )
+                content.isCloseable = false
+                ui.addContent(content, 0, PlaceInGrid.right, true)
+            }
+        }
+    }
+
     fun evaluate(
         expression: String,
         stackLevel: Int,
         cacheId: Int,
         depth: Int,
-        handler: EvalHandler
+        handler: EvalHandler,
+        priority: EvalPriority = EvalPriority.VISIBLE
     ) {
-        val request = EvalRequest(expression, stackLevel, cacheId, depth)
-        evalHandlers[request.seq] = handler
-        send(request)
+        if (handler.isObsolete) return
+        val cached = evalCache.get(stackLevel, expression, depth)
+        if (cached != null) {
+            transportMetrics?.evalCacheHits?.incrementAndGet()
+            handler.onSuccess(cached)
+            return
+        }
+        transportMetrics?.evalCacheMisses?.incrementAndGet()
+
+        // Nothing would answer, don't leave the handler waiting for the timeout
+        val transport = transport?.takeIf { it.isConnected() } ?: run {
+            handler.onError("Not connected to the debugger")
+            return
+        }
+        val request = EvalRequest(
+            expression, stackLevel, cacheId, depth,
+            generation = evalCache.generation,
+            priority = priority
+        )
+        if (evalRequests.register(request.seq, PendingEval(request, handler))) {
+            transport.send(request)
+        }
     }
 
     // ================================================================================================
@@ -286,6 +501,33 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         transport?.send(message)
     }
 
+    /**
+     * Fail the pending evaluation of a request the transport discarded
+     */
+    protected fun handleDroppedMessage(message: DebugMessage) {
+        if (message is EvalRequest) {
+            evalRequests.cancel(message.seq, "Evaluation cancelled")
+        }
+    }
+
+    /**
+     * Fail all pending evaluations and forget cached results, e.g. when the connection to
+     * the debugger is lost
+     */
+    protected fun cancelEvaluations(reason: String) {
+        stopPrefetch()
+        evalRequests.cancelAll(reason)
+        evalCache.invalidate()
+    }
+
+    /**
+     * Drop the stack that stack deltas apply to, e.g. when the connection to the debugger is lost
+     */
+    protected fun forgetStack() {
+        stackSnapshots.reset()
+        shownFrames = emptyMap()
+    }
+
     /**
      * Standard transport handler for the typical attach/launch flow:
      * connect → sendInitialization → handle messages → stop on disconnect.
@@ -298,9 +540,7 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         override fun onConnect(success: Boolean) {
             if (success) {
                 isConnected = true
-                ApplicationManager.getApplication().runReadAction {
-                    sendInitialization()
-                }
+                sendInitialization()
             } else {
                 stop()
                 session.stop()
@@ -311,12 +551,18 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
             if (isConnected) {
                 isConnected = false
                 println("Disconnected from debugger", LogConsoleType.NORMAL, ConsoleViewContentType.SYSTEM_OUTPUT)
+                cancelEvaluations("Disconnected from debugger")
+                forgetStack()
                 onTransportDisconnect()
             }
         }
 
-        override fun onMessage(command: DebugCommand, json: String) {
-            handleMessage(command, json)
+        override fun onMessage(command: DebugCommand, payload: MessagePayload) {
+            handleMessage(command, payload)
+        }
+
+        override fun onMessageDropped(message: DebugMessage) {
+            handleDroppedMessage(message)
         }
 
         override fun onError(message: String, exception: Throwable?) {
@@ -337,4 +583,22 @@ abstract class EmmyDebugProcessBase(session: XDebugSession) : LuaDebugProcess(se
         stop()
         session.stop()
     }
+
+    companion object {
+        private const val DEFAULT_PREFETCH_BYTES = 256 * 1024
+        private const val DEFAULT_PREFETCH_MS = 500
+
+        /**
+         * emmyHelper.lua as sent in every InitReq, read once per IDE run
+         */
+        private val helperCode: String by lazy {
+            val helperPath = LuaFileUtil.getPluginVirtualFile("debugger/emmy/emmyHelper.lua")
+            if (helperPath != null) {
+                File(helperPath).readText()
+            } else {
+                Logger.getInstance(EmmyDebugProcessBase::class.java).error("Emmy helper file not found")
+                ""
+            }
+        }
+    }
 }
@@ -53,10 +53,15 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
     private JLabel tcpPortLabel;
     private JTextField pipelineInput;
     private JLabel pipeNameLabel;
+    private JTextField socketPathInput;
+    private JLabel socketPathLabel;
+    private JTextField captureFileInput;
+    private JLabel captureFileLabel;
     private JPanel panel;
     private JPanel codePanel;
     private JCheckBox waitIDECheckBox;
     private JCheckBox breakWhenIDEConnectedCheckBox;
+    private JCheckBox multiClientCheckBox;
 
     private JRadioButton x64RadioButton;
     private JRadioButton x86RadioButton;
@@ -81,6 +86,9 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         DefaultComboBoxModel<EmmyDebugTransportType> model = new DefaultComboBoxModel<>();
         model.addElement(EmmyDebugTransportType.TCP_CLIENT);
         model.addElement(EmmyDebugTransportType.TCP_SERVER);
+        model.addElement(EmmyDebugTransportType.UNIX_SOCKET_CLIENT);
+        model.addElement(EmmyDebugTransportType.UNIX_SOCKET_SERVER);
+        model.addElement(EmmyDebugTransportType.REPLAY);
         /*for (EmmyDebugTransportType value : EmmyDebugTransportType.values()) {
             model.addElement(value);
         }*/
@@ -98,9 +106,15 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         // pipe
         pipelineInput.setText("emmylua");
         pipelineInput.getDocument().addDocumentListener(this);
+        // unix socket
+        socketPathInput.setText("/tmp/emmy.sock");
+        socketPathInput.getDocument().addDocumentListener(this);
+        // replay
+        captureFileInput.getDocument().addDocumentListener(this);
 
         waitIDECheckBox.addActionListener(e -> onChanged());
         breakWhenIDEConnectedCheckBox.addActionListener(e -> onChanged());
+        multiClientCheckBox.addActionListener(e -> onChanged());
 
         // arch
         winArchGroup = new ButtonGroup();
@@ -175,6 +189,9 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         tcpPortInput.setText(String.valueOf(configuration.getPort()));
 
         pipelineInput.setText(configuration.getPipeName());
+        socketPathInput.setText(configuration.getSocketPath());
+        captureFileInput.setText(configuration.getCaptureFile());
+        multiClientCheckBox.setSelected(configuration.getMultiClient());
 
         if (SystemInfoRt.isWindows) {
             if (configuration.getWinArch() == EmmyWinArch.X64) {
@@ -201,6 +218,9 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         configuration.setPort(Integer.parseInt(tcpPortInput.getText()));
 
         configuration.setPipeName(pipelineInput.getText());
+        configuration.setSocketPath(socketPathInput.getText());
+        configuration.setCaptureFile(captureFileInput.getText());
+        configuration.setMultiClient(multiClientCheckBox.isSelected());
         if (SystemInfoRt.isWindows) {
             configuration.setWinArch(x64RadioButton.isSelected() ? EmmyWinArch.X64 : EmmyWinArch.X86);
         }
@@ -221,15 +241,24 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         tcpHostInput.setVisible(isTCP);
         tcpPortInput.setVisible(isTCP);
 
-        pipeNameLabel.setVisible(!isTCP);
-        pipelineInput.setVisible(!isTCP);
+        boolean isUnixSocket = type.isUnixSocket();
+        socketPathLabel.setVisible(isUnixSocket);
+        socketPathInput.setVisible(isUnixSocket);
+
+        boolean isReplay = type == EmmyDebugTransportType.REPLAY;
+        captureFileLabel.setVisible(isReplay);
+        captureFileInput.setVisible(isReplay);
+
+        pipeNameLabel.setVisible(!isTCP && !isUnixSocket && !isReplay);
+        pipelineInput.setVisible(!isTCP && !isUnixSocket && !isReplay);
 
         waitIDECheckBox.setVisible(isClient());
+        multiClientCheckBox.setVisible(!isClient() && !isReplay);
     }
 
     private boolean isClient() {
         EmmyDebugTransportType type = getType();
-        return type == EmmyDebugTransportType.TCP_CLIENT;
+        return type == EmmyDebugTransportType.TCP_CLIENT || type == EmmyDebugTransportType.UNIX_SOCKET_CLIENT;
     }
 
     private EmmyDebugTransportType getType() {
@@ -253,6 +282,10 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
         return pipelineInput.getText();
     }
 
+    private String getSocketPath() {
+        return socketPathInput.getText();
+    }
+
     @NotNull
     @Override
     protected JComponent createEditor() {
@@ -278,6 +311,10 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
     }
 
     private void updateCodeImpl() {
+        if (getType() == EmmyDebugTransportType.REPLAY) {
+            editorEx.getDocument().setText("-- replaying a capture file, no debuggee code is needed\n");
+            return;
+        }
         StringBuilder sb = new StringBuilder();
         if (SystemInfoRt.isWindows) {
             EmmyWinArch arch = x64RadioButton.isSelected() ? EmmyWinArch.X64 : EmmyWinArch.X86;
@@ -303,6 +340,11 @@ public class EmmyDebugSettingsPanel extends SettingsEditor<EmmyDebugConfiguratio
             sb.append("dbg.tcpListen('").append(getHost()).append("', ").append(getPort()).append(")\n");
         } else if (type == EmmyDebugTransportType.TCP_SERVER) {
             sb.append("dbg.tcpConnect('").append(getHost()).append("', ").append(getPort()).append(")\n");
+        } else if (type == EmmyDebugTransportType.UNIX_SOCKET_CLIENT) {
+            // emmy_core only exposes tcp, the debuggee side has to provide the socket itself
+            sb.append("-- the debuggee must listen on unix socket '").append(getSocketPath()).append("'\n");
+        } else if (type == EmmyDebugTransportType.UNIX_SOCKET_SERVER) {
+            sb.append("-- the debuggee must connect to unix socket '").append(getSocketPath()).append("'\n");
         }
 
         if (isClient()) {
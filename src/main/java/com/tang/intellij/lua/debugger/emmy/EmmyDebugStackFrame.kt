@@ -16,7 +16,6 @@
 
 package com.tang.intellij.lua.debugger.emmy
 
-import com.intellij.openapi.application.ReadAction
 import com.intellij.ui.ColoredTextContainer
 import com.intellij.ui.SimpleTextAttributes
 import com.intellij.xdebugger.XSourcePosition
@@ -26,14 +25,16 @@ import com.intellij.xdebugger.frame.XValueChildrenList
 import com.intellij.xdebugger.impl.XSourcePositionImpl
 import com.tang.intellij.lua.debugger.LuaDebugVariableContext
 import com.tang.intellij.lua.debugger.emmy.value.LuaXValue
-import com.tang.intellij.lua.debugger.model.DebugStackFrame
-import com.tang.intellij.lua.psi.LuaFileUtil
+import com.tang.intellij.lua.debugger.model.LazyStackFrame
 
 /**
- * Stack frame for Emmy debugger - represents one frame in the call stack
+ * Stack frame for Emmy debugger - represents one frame in the call stack.
+ * Its variables are decoded from the BreakNotify payload when first shown.
+ * A frame a stack delta leaves unchanged is shown again at the next break as is,
+ * with its source position and values.
  */
 class EmmyDebugStackFrame(
-    val stackData: DebugStackFrame,
+    val stackData: LazyStackFrame,
     val process: EmmyDebugProcessBase
 ) : XStackFrame() {
 
@@ -65,42 +66,24 @@ class EmmyDebugStackFrame(
         )
     }
 
+    // Locals then upvalues, created once
+    private val values: List<LuaXValue> by lazy {
+        (stackData.localVariables + stackData.upvalueVariables).map { LuaXValue.create(it, this) }
+    }
+
     override fun computeChildren(node: XCompositeNode) {
         val children = XValueChildrenList()
-
-        // Add local variables
-        stackData.localVariables.forEach { variable ->
-            val value = LuaXValue.create(variable, this)
-            children.add(value.name, value)
-        }
-
-        // Add upvalues
-        stackData.upvalueVariables.forEach { variable ->
-            val value = LuaXValue.create(variable, this)
-            children.add(value.name, value)
-        }
-
+        values.forEach { value -> children.add(value.name, value) }
         node.addChildren(children, true)
     }
 
     override fun getSourcePosition(): XSourcePosition? {
         if (!sourcePositionInitialized) {
-            sourcePosition = ReadAction.compute<XSourcePosition?, RuntimeException> {
-                try {
-                    val sourceRoots = process.getSourceRoots()
-                    val file = LuaFileUtil.findFile(process.session.project, stackData.file, sourceRoots)
-                    if (file != null) {
-                        XSourcePositionImpl.create(file, stackData.line - 1)
-                    } else {
-                        null
-                    }
-                } catch (e: Exception) {
-                    null
-                }
-            }
+            // Usually answered from the session's cache, filled when the break was shown
+            val file = process.sourcePositions.resolve(stackData.file)
+            sourcePosition = file?.let { XSourcePositionImpl.create(it, stackData.line - 1) }
             sourcePositionInitialized = true
         }
         return sourcePosition
     }
 }
-
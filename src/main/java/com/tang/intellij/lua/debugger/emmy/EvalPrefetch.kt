@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.emmy
+
+import com.tang.intellij.lua.debugger.emmy.value.TableXValue
+import com.tang.intellij.lua.debugger.model.DebugVariable
+import com.tang.intellij.lua.debugger.model.EvalPriority
+import com.tang.intellij.lua.debugger.model.LuaValueType
+import java.util.concurrent.TimeUnit
+
+/**
+ * Expands the table and userdata locals of the top frame in the background right after
+ * a break, with the same evaluation the Variables view sends when one is expanded, so
+ * the result is already in the evaluation cache when the user gets there.
+ *
+ * A few evaluations are in flight at a time, queued behind those for what is on screen.
+ * No new one starts once the results add up to [byteBudget] bytes, once [timeBudgetMs]
+ * has passed, or after [cancel], which the process calls when the debuggee resumes.
+ */
+internal class EvalPrefetch(
+    private val process: EmmyDebugProcessBase,
+    private val stackLevel: Int,
+    locals: List<DebugVariable>,
+    private val byteBudget: Int,
+    timeBudgetMs: Long
+) {
+    private val pending = ArrayDeque(locals.filter(::isExpandable))
+    private val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMs)
+    private var bytes = 0
+
+    @Volatile
+    private var cancelled = false
+
+    fun start() {
+        repeat(IN_FLIGHT) { next() }
+    }
+
+    /**
+     * Start no further evaluations; those in flight are cancelled with the rest on resume
+     */
+    fun cancel() {
+        cancelled = true
+        synchronized(this) { pending.clear() }
+    }
+
+    private fun next() {
+        val variable = synchronized(this) {
+            if (cancelled || bytes >= byteBudget || System.nanoTime() - deadline > 0) {
+                pending.clear()
+                return
+            }
+            pending.removeFirstOrNull() ?: return
+        }
+        process.evaluate(
+            variable.name,
+            stackLevel,
+            variable.cacheId,
+            TableXValue.EXPAND_DEPTH,
+            object : EmmyDebugProcessBase.EvalHandler {
+                override fun onSuccess(variable: DebugVariable) {
+                    synchronized(this@EvalPrefetch) { bytes += sizeOf(variable) }
+                    next()
+                }
+
+                override fun onError(error: String) {
+                    next()
+                }
+            },
+            EvalPriority.BACKGROUND
+        )
+    }
+
+    companion object {
+        // Evaluations of one prefetch waiting for their response at the same time
+        private const val IN_FLIGHT = 2
+
+        private val IDENTIFIER = Regex("[A-Za-z_][A-Za-z0-9_]*")
+
+        // Tables and userdata under a plain name, the expression TableXValue sends for a local
+        private fun isExpandable(variable: DebugVariable): Boolean {
+            val type = variable.valueTypeValue
+            return (type == LuaValueType.TTABLE || type == LuaValueType.TUSERDATA) &&
+                    variable.nameTypeValue == LuaValueType.TSTRING &&
+                    IDENTIFIER.matches(variable.name)
+        }
+
+        // Rough size of a result as the debugger encodes it
+        private fun sizeOf(variable: DebugVariable): Int {
+            var size = 32 + variable.name.length + variable.value.length + variable.valueTypeName.length
+            variable.children?.forEach { size += sizeOf(it) }
+            return size
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.emmy
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.guessProjectDir
+import com.intellij.openapi.vfs.VfsUtil
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.*
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.ProjectAndLibrariesScope
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.tang.intellij.lua.lang.LuaFileType
+import com.tang.intellij.lua.psi.LuaFileManager
+import com.tang.intellij.lua.psi.LuaFileUtil
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Maps the file names a debugger reports to project files, for one debug session.
+ *
+ * Answers are cached per name until the VFS reports files created, deleted, moved or renamed.
+ * Relative chunk names such as `scripts/ui/main.lua` or `ui/main` are looked up in an
+ * in-memory index of the project's Lua files by name, preferring the file whose path shares
+ * the most trailing directories with the chunk name, then the shortest path. A chunk name
+ * with directories only matches files sharing at least one of them, a bare file name
+ * matches any file of that name.
+ */
+class SourcePositionResolver(
+    private val project: Project,
+    private val sourceRoots: () -> List<String>
+) : Disposable {
+
+    private val logger = Logger.getInstance(javaClass)
+
+    private class Resolution(val file: VirtualFile?)
+
+    private val resolved = ConcurrentHashMap<String, Resolution>()
+
+    // Lua files by name, built on first use
+    @Volatile
+    private var index: Map<String, List<VirtualFile>>? = null
+
+    // Bumped on invalidation so lookups racing with it do not cache stale answers
+    private val generation = AtomicInteger()
+
+    init {
+        ApplicationManager.getApplication().messageBus.connect(this).subscribe(
+            VirtualFileManager.VFS_CHANGES,
+            object : BulkFileListener {
+                override fun after(events: List<VFileEvent>) {
+                    // Content changes leave every path where it was
+                    if (events.any { it.changesPaths() }) invalidate()
+                }
+            }
+        )
+    }
+
+    /**
+     * File for a name reported by the debugger, or `null` if no file matches
+     */
+    fun resolve(path: String): VirtualFile? {
+        resolved[path]?.let { cached ->
+            val file = cached.file
+            if (file == null || file.isValid) return file
+        }
+        val current = generation.get()
+        val file = try {
+            ReadAction.compute<VirtualFile?, RuntimeException> { find(path) }
+        } catch (e: ProcessCanceledException) {
+            throw e
+        } catch (e: Exception) {
+            logger.debug("Cannot resolve $path", e)
+            null
+        }
+        if (generation.get() == current) {
+            resolved[path] = Resolution(file)
+        }
+        return file
+    }
+
+    /**
+     * Resolve names not cached yet on pooled threads, one per name, and wait for them,
+     * so the frames of a break show their positions without resolving one after another
+     */
+    fun resolveAll(paths: Collection<String>) {
+        val pending = paths.filterTo(LinkedHashSet()) { !resolved.containsKey(it) }
+        when (pending.size) {
+            0 -> return
+            1 -> resolve(pending.first())
+            else -> {
+                val tasks = pending.map { path -> Callable { resolve(path) } }
+                AppExecutorUtil.getAppExecutorService().invokeAll(tasks)
+            }
+        }
+    }
+
+    /**
+     * Forget all answers, e.g. when files were added, removed or renamed
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+        index = null
+        resolved.clear()
+    }
+
+    override fun dispose() {
+        invalidate()
+    }
+
+    private fun find(path: String): VirtualFile? {
+        // Absolute paths and source roots are cheap I/O lookups, the same as LuaFileUtil does
+        if (File(path).isAbsolute) {
+            return LuaFileUtil.findFile(project, path)
+        }
+        val relative = normalize(path)
+        if (relative.isEmpty()) return null
+        val roots = sourceRoots()
+        if (roots.isNotEmpty()) {
+            LuaFileUtil.findInSourceRoots(relative, roots)?.let { return it }
+        }
+        // The file type index is not available while indexing
+        if (DumbService.isDumb(project)) {
+            return LuaFileUtil.findFile(project, relative)
+        }
+
+        val segments = relative.split('/')
+        val name = segments.last()
+        val names = if (name.contains(".")) listOf(name) else LuaFileManager.extensions.map { "$name$it" }
+        val index = index()
+        for (candidate in names) {
+            val files = index[candidate] ?: continue
+            bestMatch(files, segments)?.let { return it }
+        }
+        return project.guessProjectDir()?.let { VfsUtil.findRelativeFile(relative, it) }
+    }
+
+    private fun index(): Map<String, List<VirtualFile>> {
+        index?.let { return it }
+        val current = generation.get()
+        val files = FileTypeIndex.getFiles(LuaFileType.INSTANCE, ProjectAndLibrariesScope(project))
+        val built = files.groupBy { it.name }
+        if (generation.get() == current) {
+            index = built
+        }
+        return built
+    }
+
+    companion object {
+        /**
+         * Frames resolved ahead of a break being shown, about what the Frames view shows
+         */
+        const val VISIBLE_FRAMES = 16
+
+        // "./a\b.lua" => "a/b.lua"
+        private fun normalize(path: String): String {
+            var result = path.replace('\\', '/')
+            while (result.startsWith("./")) {
+                result = result.substring(2)
+            }
+            return result
+        }
+
+        private fun bestMatch(files: List<VirtualFile>, segments: List<String>): VirtualFile? {
+            var best: VirtualFile? = null
+            var bestScore = 0
+            var bestLength = Int.MAX_VALUE
+            // Files sharing nothing but their name with "scripts/ai/util.lua" are someone else's util.lua
+            val minScore = if (segments.size > 1) 2 else 1
+            for (file in files) {
+                if (!file.isValid) continue
+                val score = matchingSuffix(file, segments)
+                if (score < minScore) continue
+                val length = file.path.length
+                if (score > bestScore || (score == bestScore && length < bestLength)) {
+                    best = file
+                    bestScore = score
+                    bestLength = length
+                }
+            }
+            return best
+        }
+
+        // Trailing directories the file's path shares with the chunk name, the file name
+        // itself matched already
+        private fun matchingSuffix(file: VirtualFile, segments: List<String>): Int {
+            var score = 1
+            var parent = file.parent
+            var i = segments.size - 2
+            while (i >= 0 && parent != null && parent.name == segments[i]) {
+                score++
+                parent = parent.parent
+                i--
+            }
+            return score
+        }
+
+        private fun VFileEvent.changesPaths(): Boolean = when (this) {
+            is VFileCreateEvent, is VFileDeleteEvent, is VFileMoveEvent, is VFileCopyEvent -> true
+            is VFilePropertyChangeEvent -> isRename
+            else -> false
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.emmy
+
+import com.intellij.icons.AllIcons
+import com.intellij.openapi.actionSystem.ActionManager
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.DefaultActionGroup
+import com.intellij.openapi.fileChooser.FileChooserFactory
+import com.intellij.openapi.fileChooser.FileSaverDescriptor
+import com.intellij.openapi.project.DumbAwareAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.SimpleToolWindowPanel
+import com.intellij.ui.components.JBLabel
+import com.intellij.ui.components.JBScrollPane
+import com.intellij.ui.table.JBTable
+import com.intellij.util.ui.JBUI
+import com.tang.intellij.lua.debugger.transport.CommandMetrics
+import com.tang.intellij.lua.debugger.transport.LatencyHistogram
+import com.tang.intellij.lua.debugger.transport.TransportMetrics
+import java.awt.BorderLayout
+import javax.swing.JPanel
+import javax.swing.Timer
+import javax.swing.table.AbstractTableModel
+
+/**
+ * Debug session tab showing the traffic and latency counters of the Emmy transport
+ * @param metrics Metrics of the current transport, null before it is created
+ */
+class TransportMetricsPanel(
+    private val project: Project,
+    private val metrics: () -> TransportMetrics?
+) : SimpleToolWindowPanel(true, true) {
+
+    private val summary = JBLabel()
+    private val model = CommandTableModel()
+    private val timer = Timer(REFRESH_INTERVAL_MS) { refresh() }
+
+    init {
+        summary.border = JBUI.Borders.empty(4, 8)
+        setContent(JPanel(BorderLayout()).apply {
+            add(summary, BorderLayout.NORTH)
+            add(JBScrollPane(JBTable(model)), BorderLayout.CENTER)
+        })
+
+        val actions = DefaultActionGroup(ExportAction(), ResetAction())
+        val toolbar = ActionManager.getInstance().createActionToolbar("EmmyTransportMetrics", actions, true)
+        toolbar.targetComponent = this
+        setToolbar(toolbar.component)
+    }
+
+    override fun addNotify() {
+        super.addNotify()
+        refresh()
+        timer.start()
+    }
+
+    override fun removeNotify() {
+        timer.stop()
+        super.removeNotify()
+    }
+
+    private fun refresh() {
+        val snapshot = metrics()?.snapshot()
+        if (snapshot == null) {
+            summary.text = "Not connected"
+            model.update(emptyList())
+            return
+        }
+        summary.text = "<html>" +
+                "Queue: ${snapshot.queueDepth} (peak ${snapshot.peakQueueDepth}), " +
+                "dropped: ${snapshot.messagesDropped}, " +
+                "messages per write: ${"%.1f".format(snapshot.messagesPerWrite)}<br>" +
+                "Eval round trip: ${format(snapshot.evalRoundTrip)}, pending: ${snapshot.pendingEvals}, " +
+                "timed out: ${snapshot.evalsTimedOut}, orphaned: ${snapshot.evalsOrphaned}, " +
+                "rejected: ${snapshot.evalsRejected}, stale: ${snapshot.evalsStale}<br>" +
+                "Eval cache: ${snapshot.evalCacheHits} hits, ${snapshot.evalCacheMisses} misses<br>" +
+                "Dispatch delay: ${format(snapshot.dispatchDelay)}<br>" +
+                "Connect to ready: ${format(snapshot.connectToReady)}, " +
+                "ready to first break: ${format(snapshot.readyToFirstBreak)}" +
+                "</html>"
+        model.update(snapshot.commands.entries.map { it.key to it.value })
+    }
+
+    private fun format(histogram: LatencyHistogram.Snapshot): String {
+        if (histogram.count == 0L) return "no samples"
+        return "n=${histogram.count} p50 ${millis(histogram.p50Micros)} p90 ${millis(histogram.p90Micros)} " +
+                "p99 ${millis(histogram.p99Micros)} max ${millis(histogram.maxMicros)} ms"
+    }
+
+    private inner class ExportAction : DumbAwareAction(
+        "Export as JSON",
+        "Save the transport metrics to a JSON file",
+        AllIcons.ToolbarDecorator.Export
+    ) {
+        override fun actionPerformed(e: AnActionEvent) {
+            val json = metrics()?.toJson() ?: return
+            val descriptor = FileSaverDescriptor("Export Transport Metrics", "Save the transport metrics as JSON", "json")
+            val target = FileChooserFactory.getInstance()
+                .createSaveFileDialog(descriptor, project)
+                .save("emmy-transport-metrics.json") ?: return
+            target.file.writeText(json)
+        }
+    }
+
+    private inner class ResetAction : DumbAwareAction(
+        "Reset",
+        "Reset the transport metrics",
+        AllIcons.Actions.GC
+    ) {
+        override fun actionPerformed(e: AnActionEvent) {
+            metrics()?.reset()
+            refresh()
+        }
+    }
+
+    private class CommandTableModel : AbstractTableModel() {
+        private var rows: List<Pair<String, CommandMetrics.Snapshot>> = emptyList()
+
+        fun update(rows: List<Pair<String, CommandMetrics.Snapshot>>) {
+            this.rows = rows
+            fireTableDataChanged()
+        }
+
+        override fun getRowCount(): Int = rows.size
+
+        override fun getColumnCount(): Int = COLUMNS.size
+
+        override fun getColumnName(column: Int): String = COLUMNS[column]
+
+        override fun getValueAt(rowIndex: Int, columnIndex: Int): Any {
+            val (command, stats) = rows[rowIndex]
+            return when (columnIndex) {
+                0 -> command
+                1 -> stats.messagesIn
+                2 -> stats.messagesOut
+                3 -> stats.bytesIn
+                4 -> stats.bytesOut
+                5 -> millis(stats.encodeMicros)
+                6 -> millis(stats.decodeMicros)
+                else -> millis(stats.handleMicros)
+            }
+        }
+    }
+
+    companion object {
+        private const val REFRESH_INTERVAL_MS = 1000
+
+        private val COLUMNS = arrayOf(
+            "Command", "In", "Out", "Bytes in", "Bytes out", "Encode (ms)", "Decode (ms)", "Handle (ms)"
+        )
+
+        private fun millis(micros: Long): String = "%.2f".format(micros / 1000.0)
+    }
+}
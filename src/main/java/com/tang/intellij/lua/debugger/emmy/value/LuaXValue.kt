@@ -72,6 +72,48 @@ sealed class LuaXValue(val variable: DebugVariable) : XValue() {
      */
     protected abstract fun stackFrame(): Any?
 
+    // Children last added and their XValues, built on first display and reused on every
+    // expand so they keep their own state
+    private class ChildValues(val source: List<DebugVariable>, val order: IntArray) {
+        val values = arrayOfNulls<LuaXValue>(order.size)
+    }
+
+    @Volatile
+    private var childValues: ChildValues? = null
+
+    /**
+     * Add [children] to [node] in display order, a page at a time; large tables get a
+     * "more" link instead of materializing every child up front
+     */
+    protected fun addChildren(node: XCompositeNode, children: List<DebugVariable>?, frame: EmmyDebugStackFrame) {
+        if (children.isNullOrEmpty()) {
+            node.addChildren(XValueChildrenList.EMPTY, true)
+            return
+        }
+        val shown = childValues?.takeIf { it.source === children }
+            ?: ChildValues(children, displayOrder(children)).also { childValues = it }
+        addPage(node, shown, 0, frame)
+    }
+
+    private fun addPage(node: XCompositeNode, shown: ChildValues, from: Int, frame: EmmyDebugStackFrame) {
+        val order = shown.order
+        val to = minOf(order.size, from + XCompositeNode.MAX_CHILDREN_TO_SHOW)
+        val list = XValueChildrenList(to - from)
+        for (i in from until to) {
+            val child = shown.values[i] ?: LuaXValueFactory.create(shown.source[order[i]], frame).also {
+                it.parent = this
+                shown.values[i] = it
+            }
+            list.add(child.name, child)
+        }
+        if (to < order.size) {
+            node.addChildren(list, false)
+            node.tooManyChildren(order.size - to) { addPage(node, shown, to, frame) }
+        } else {
+            node.addChildren(list, true)
+        }
+    }
+
     /**
      * Get evaluation expression for inline values
      */
@@ -202,14 +244,6 @@ class GroupXValue(
 
     override fun stackFrame() = frame
 
-    private val children: List<LuaXValue> by lazy {
-        variable.children?.sortedWith(
-            compareBy(
-            { if (it.isFake) 0 else 1 },
-            { it.displayName }
-        ))?.map { LuaXValueFactory.create(it, frame) } ?: emptyList()
-    }
-
     override fun computePresentation(node: XValueNode, place: XValuePlace) {
         node.setPresentation(
             AllIcons.Nodes.UpLevel,
@@ -220,12 +254,7 @@ class GroupXValue(
     }
 
     override fun computeChildren(node: XCompositeNode) {
-        val list = XValueChildrenList()
-        children.forEach { child ->
-            child.parent = this
-            list.add(child.name, child)
-        }
-        node.addChildren(list, true)
+        addChildren(node, variable.children, frame)
     }
 }
 
@@ -239,14 +268,6 @@ class TableXValue(
 
     override fun stackFrame() = frame
 
-    private val children: List<LuaXValue> by lazy {
-        variable.children?.sortedWith(
-            compareBy(
-            { if (it.isFake) 0 else 1 },
-            { it.displayName }
-        ))?.map { LuaXValueFactory.create(it, frame) } ?: emptyList()
-    }
-
     override fun computePresentation(node: XValueNode, place: XValuePlace) {
         val icon = when (variable.valueTypeName) {
             "C#" -> LuaIcons.CSHARP
@@ -276,26 +297,44 @@ class TableXValue(
             expression,
             frame.stackData.level,
             variable.cacheId,
-            2, // depth
+            EXPAND_DEPTH,
             object : EmmyDebugProcessBase.EvalHandler {
                 override fun onSuccess(variable: DebugVariable) {
-                    val list = XValueChildrenList()
-                    variable.children?.sortedWith(
-                        compareBy(
-                        { if (it.isFake) 0 else 1 },
-                        { it.displayName }
-                    ))?.forEach { child ->
-                        val childValue = LuaXValueFactory.create(child, frame)
-                        childValue.parent = this@TableXValue
-                        list.add(childValue.name, childValue)
-                    }
-                    node.addChildren(list, true)
+                    addChildren(node, variable.children, frame)
                 }
 
                 override fun onError(error: String) {
                     node.setErrorMessage(error)
                 }
+
+                override val isObsolete: Boolean
+                    get() = node.isObsolete
             }
         )
     }
+
+    companion object {
+        /**
+         * Depth of the evaluation that expands a table: the table and its children
+         */
+        const val EXPAND_DEPTH = 2
+    }
+}
+
+/**
+ * Indices of [children] in display order: synthetic groups first, then by display name.
+ * Each name is computed once rather than on every comparison.
+ */
+private fun displayOrder(children: List<DebugVariable>): IntArray {
+    val fake = BooleanArray(children.size)
+    val names = arrayOfNulls<String>(children.size)
+    children.forEachIndexed { i, child ->
+        fake[i] = child.isFake
+        names[i] = child.displayName
+    }
+    return children.indices
+        .sortedWith { a, b ->
+            if (fake[a] != fake[b]) (if (fake[a]) -1 else 1) else names[a]!!.compareTo(names[b]!!)
+        }
+        .toIntArray()
 }
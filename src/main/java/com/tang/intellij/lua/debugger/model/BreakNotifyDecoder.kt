@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+import com.google.gson.stream.JsonReader
+import com.intellij.openapi.diagnostic.Logger
+import com.google.gson.stream.JsonToken
+import com.google.gson.stream.MalformedJsonException
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+import java.io.StringReader
+
+/**
+ * Stack frame of a BreakNotify whose variables stay undecoded until first asked for.
+ *
+ * The header (file, line, functionName, level) is decoded right away; locals and upvalues
+ * are kept as slices of the received payload, so a deep stack costs little more than its
+ * bytes until the user expands a frame.
+ */
+class LazyStackFrame private constructor(
+    val file: String,
+    val line: Int,
+    val functionName: String,
+    val level: Int,
+    locals: () -> List<DebugVariable>,
+    upvalues: () -> List<DebugVariable>
+) {
+    internal constructor(
+        file: String,
+        line: Int,
+        functionName: String,
+        level: Int,
+        source: ByteArray,
+        locals: Slice?,
+        upvalues: Slice?
+    ) : this(file, line, functionName, level, { decode(source, locals) }, { decode(source, upvalues) })
+
+    /**
+     * Local variables in this frame, decoded on first access
+     */
+    val localVariables: List<DebugVariable> by lazy(locals)
+
+    /**
+     * Upvalue variables (closures), decoded on first access
+     */
+    val upvalueVariables: List<DebugVariable> by lazy(upvalues)
+
+    /**
+     * This frame after [delta], which must continue it; the frame itself when nothing
+     * changed, so callers can keep what they built for it.
+     *
+     * Changed variables are merged right away rather than lazily, a chain of deltas must
+     * not keep every earlier frame alive.
+     */
+    internal fun apply(delta: DebugStackFrameDelta): LazyStackFrame {
+        val unchanged = delta.line == line && delta.level == level &&
+                delta.localVariables.isEmpty() && delta.removedLocals.isEmpty() &&
+                delta.upvalueVariables.isEmpty() && delta.removedUpvalues.isEmpty()
+        if (unchanged) return this
+        val locals = merge(localVariables, delta.localVariables, delta.removedLocals)
+        val upvalues = merge(upvalueVariables, delta.upvalueVariables, delta.removedUpvalues)
+        return LazyStackFrame(file, delta.line, functionName, delta.level, { locals }, { upvalues })
+    }
+
+    companion object {
+        private val logger = Logger.getInstance(LazyStackFrame::class.java)
+
+        /**
+         * Frame sent in full within a delta
+         */
+        internal fun of(delta: DebugStackFrameDelta) = LazyStackFrame(
+            StringPool.intern(delta.file), delta.line, StringPool.intern(delta.functionName), delta.level,
+            { delta.localVariables }, { delta.upvalueVariables }
+        )
+
+        private fun decode(source: ByteArray, slice: Slice?): List<DebugVariable> {
+            if (slice == null) return emptyList()
+            return try {
+                val strings = slice.strings
+                if (strings != null) {
+                    DebugProtocolCodec.readVariables(CborReader(source, slice.start, slice.start + slice.length, strings.fork()))
+                } else {
+                    val reader = InputStreamReader(ByteArrayInputStream(source, slice.start, slice.length), Charsets.UTF_8)
+                    DebugProtocolCodec.readVariables(reader)
+                }
+            } catch (e: Exception) {
+                // Most likely a debugger speaking another protocol version
+                logger.warn("Failed to decode variables at ${slice.start}+${slice.length}", e)
+                emptyList()
+            }
+        }
+
+        /**
+         * [base] in its order with same-named entries of [changed] swapped in, the remaining
+         * [changed] appended and [removed] names left out
+         */
+        private fun merge(base: List<DebugVariable>, changed: List<DebugVariable>, removed: List<String>): List<DebugVariable> {
+            if (changed.isEmpty() && removed.isEmpty()) return base
+            val replacements = changed.associateByTo(LinkedHashMap()) { it.name }
+            val dropped = removed.toHashSet()
+            val merged = ArrayList<DebugVariable>(base.size + changed.size)
+            for (variable in base) {
+                if (variable.name in dropped) continue
+                merged.add(replacements.remove(variable.name) ?: variable)
+            }
+            merged.addAll(replacements.values)
+            return VariableColumns.of(merged)
+        }
+    }
+
+    /**
+     * @param strings For CBOR payloads, the strings a slice may refer to
+     */
+    internal class Slice(val start: Int, val length: Int, val strings: CborStringTable? = null)
+}
+
+/**
+ * Streaming decoder of BreakNotify payloads into [LazyStackFrame]s.
+ *
+ * It scans the payload once: frame headers are decoded, variable arrays are only
+ * delimited. All frames share the payload array, nothing is copied per frame.
+ */
+object BreakNotifyDecoder {
+
+    private val logger = Logger.getInstance(BreakNotifyDecoder::class.java)
+
+    /**
+     * @param payload JSON or CBOR of a [BreakpointNotification], owned by the returned frames
+     * @return the frames, or null if the payload is malformed
+     */
+    fun decode(payload: ByteArray): List<LazyStackFrame>? = decodeSnapshot(payload)?.frames
+
+    /**
+     * Like [decode], keeping the snapshot id later deltas refer to
+     */
+    fun decodeSnapshot(payload: ByteArray): StackSnapshot? {
+        if (payload.isNotEmpty() && PayloadEncoding.of(payload[0]) == PayloadEncoding.CBOR) {
+            return decodeCbor(payload)
+        }
+        return try {
+            val scanner = JsonScanner(payload)
+            val frames = ArrayList<LazyStackFrame>()
+            var snapshot = 0
+            scanner.readObject { name ->
+                when {
+                    name == "snapshot" -> snapshot = scanner.readInt()
+                    name != "stacks" -> scanner.skipValue()
+                    !scanner.nextIsNull() -> scanner.readArray { frames.add(readFrame(scanner, payload)) }
+                }
+            }
+            StackSnapshot(snapshot, frames)
+        } catch (e: Exception) {
+            logger.warn("Failed to decode BreakNotify of ${payload.size} bytes", e)
+            null
+        }
+    }
+
+    private fun readFrame(scanner: JsonScanner, payload: ByteArray): LazyStackFrame {
+        var file = ""
+        var line = 0
+        var functionName = ""
+        var level = 0
+        var locals: LazyStackFrame.Slice? = null
+        var upvalues: LazyStackFrame.Slice? = null
+        scanner.readObject { name ->
+            when (name) {
+                "file" -> file = scanner.readString()?.let(StringPool::intern) ?: ""
+                "line" -> line = scanner.readInt()
+                "functionName" -> functionName = scanner.readString()?.let(StringPool::intern) ?: ""
+                "level" -> level = scanner.readInt()
+                "localVariables" -> locals = scanner.sliceValue()
+                "upvalueVariables" -> upvalues = scanner.sliceValue()
+                else -> scanner.skipValue()
+            }
+        }
+        return LazyStackFrame(file, line, functionName, level, payload, locals, upvalues)
+    }
+
+    private fun decodeCbor(payload: ByteArray): StackSnapshot? {
+        return try {
+            val reader = CborReader(payload)
+            val frames = ArrayList<LazyStackFrame>()
+            var snapshot = 0
+            reader.beginObject()
+            while (reader.hasNext()) {
+                val name = reader.nextName()
+                if (name == "snapshot") {
+                    snapshot = reader.nextIntOrZero()
+                    continue
+                }
+                if (name != "stacks" || reader.peek() == JsonToken.NULL) {
+                    reader.skipValue()
+                    continue
+                }
+                reader.beginArray()
+                while (reader.hasNext()) {
+                    frames.add(readFrame(reader, payload))
+                }
+                reader.endArray()
+            }
+            reader.endObject()
+            StackSnapshot(snapshot, frames)
+        } catch (e: Exception) {
+            logger.warn("Failed to decode CBOR BreakNotify of ${payload.size} bytes", e)
+            null
+        }
+    }
+
+    private fun readFrame(reader: CborReader, payload: ByteArray): LazyStackFrame {
+        var file = ""
+        var line = 0
+        var functionName = ""
+        var level = 0
+        var locals: LazyStackFrame.Slice? = null
+        var upvalues: LazyStackFrame.Slice? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "file" -> file = reader.nextStringOrNull()?.let(StringPool::intern) ?: ""
+                "line" -> line = reader.nextIntOrZero()
+                "functionName" -> functionName = reader.nextStringOrNull()?.let(StringPool::intern) ?: ""
+                "level" -> level = reader.nextIntOrZero()
+                "localVariables" -> locals = sliceValue(reader)
+                "upvalueVariables" -> upvalues = sliceValue(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+        return LazyStackFrame(file, line, functionName, level, payload, locals, upvalues)
+    }
+
+    /**
+     * Extent of the next value together with the strings it may refer to, or null for null
+     */
+    private fun sliceValue(reader: CborReader): LazyStackFrame.Slice? {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull()
+            return null
+        }
+        val strings = reader.strings.fork()
+        val start = reader.position
+        reader.skipValue()
+        return LazyStackFrame.Slice(start, reader.position - start, strings)
+    }
+
+    private fun CborReader.nextStringOrNull(): String? {
+        if (peek() != JsonToken.NULL) return nextString()
+        nextNull()
+        return null
+    }
+
+    private fun CborReader.nextIntOrZero(): Int {
+        if (peek() != JsonToken.NULL) return nextInt()
+        nextNull()
+        return 0
+    }
+}
+
+/**
+ * Minimal JSON scanner over UTF-8 bytes, just enough to walk objects, read scalars and
+ * find the extent of values without decoding them
+ */
+private class JsonScanner(private val bytes: ByteArray) {
+
+    private var pos = 0
+
+    inline fun readObject(field: (String) -> Unit) {
+        expect('{')
+        if (peek() == '}'.code) {
+            pos++
+            return
+        }
+        while (true) {
+            val name = readString() ?: throw malformed("field name")
+            expect(':')
+            field(name)
+            when (next()) {
+                ','.code -> continue
+                '}'.code -> return
+                else -> throw malformed("',' or '}'")
+            }
+        }
+    }
+
+    inline fun readArray(element: () -> Unit) {
+        expect('[')
+        if (peek() == ']'.code) {
+            pos++
+            return
+        }
+        while (true) {
+            element()
+            when (next()) {
+                ','.code -> continue
+                ']'.code -> return
+                else -> throw malformed("',' or ']'")
+            }
+        }
+    }
+
+    fun nextIsNull(): Boolean {
+        if (peek() != 'n'.code) return false
+        skipValue()
+        return true
+    }
+
+    fun readString(): String? {
+        if (nextIsNull()) return null
+        val start = pos
+        expect('"')
+        var escaped = false
+        while (true) {
+            val c = byteAt(pos++)
+            if (c == '"'.code) break
+            if (c == '\\'.code) {
+                escaped = true
+                pos++
+            }
+        }
+        if (!escaped) {
+            return String(bytes, start + 1, pos - start - 2, Charsets.UTF_8)
+        }
+        // Escape sequences are rare in paths and names, leave them to Gson
+        return JsonReader(StringReader(String(bytes, start, pos - start, Charsets.UTF_8))).nextString()
+    }
+
+    fun readInt(): Int {
+        if (nextIsNull()) return 0
+        val start = pos
+        skipValue()
+        val text = String(bytes, start, pos - start, Charsets.US_ASCII)
+        return text.toIntOrNull() ?: text.toDouble().toInt()
+    }
+
+    /**
+     * Extent of the next value, or null for a JSON null
+     */
+    fun sliceValue(): LazyStackFrame.Slice? {
+        if (nextIsNull()) return null
+        val start = pos
+        skipValue()
+        return LazyStackFrame.Slice(start, pos - start)
+    }
+
+    fun skipValue() {
+        when (peek()) {
+            '"'.code -> {
+                pos++
+                skipStringTail()
+            }
+            '{'.code, '['.code -> {
+                var depth = 0
+                do {
+                    when (byteAt(pos++)) {
+                        '{'.code, '['.code -> depth++
+                        '}'.code, ']'.code -> depth--
+                        '"'.code -> skipStringTail()
+                    }
+                } while (depth > 0)
+            }
+            else -> {
+                // Number or literal
+                val start = pos
+                while (pos < bytes.size && !isDelimiter(bytes[pos].toInt())) pos++
+                if (pos == start) throw malformed("value")
+            }
+        }
+    }
+
+    private fun skipStringTail() {
+        while (true) {
+            when (byteAt(pos++)) {
+                '"'.code -> return
+                '\\'.code -> pos++
+            }
+        }
+    }
+
+    private fun expect(c: Char) {
+        if (next() != c.code) throw malformed("'$c'")
+    }
+
+    private fun next(): Int {
+        val c = peek()
+        pos++
+        return c
+    }
+
+    private fun peek(): Int {
+        while (pos < bytes.size && isWhitespace(bytes[pos].toInt())) pos++
+        return byteAt(pos)
+    }
+
+    private fun byteAt(index: Int): Int {
+        if (index >= bytes.size) throw MalformedJsonException("Unexpected end of BreakNotify payload")
+        return bytes[index].toInt()
+    }
+
+    private fun isWhitespace(c: Int) = c == ' '.code || c == '\n'.code || c == '\r'.code || c == '\t'.code
+
+    private fun isDelimiter(c: Int) = c == ','.code || c == '}'.code || c == ']'.code || isWhitespace(c)
+
+    private fun malformed(expected: String) = MalformedJsonException("Expected $expected at byte $pos of BreakNotify payload")
+}
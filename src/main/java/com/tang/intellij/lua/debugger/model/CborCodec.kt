@@ -0,0 +1,756 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import com.google.gson.stream.JsonWriter
+import com.google.gson.stream.MalformedJsonException
+import java.io.IOException
+import java.io.OutputStream
+import java.io.Reader
+import java.io.StringReader
+import java.io.Writer
+
+/**
+ * Encoding of a message payload.
+ *
+ * JSON is what every debugger speaks. CBOR (RFC 8949) is negotiated through
+ * [DebugCapabilities.CBOR] and carries the same fields with the same names, so the
+ * protocol classes and their adapters are shared between both encodings.
+ *
+ * JSON payloads start with an ASCII character, CBOR payloads with a map or the stringref
+ * namespace tag, both at least 0x80. Receivers tell them apart by the first byte, like
+ * [com.tang.intellij.lua.debugger.transport.FrameFormat] does for frames.
+ */
+enum class PayloadEncoding {
+    JSON,
+    CBOR;
+
+    companion object {
+        /**
+         * Encoding of a payload starting with [firstByte]
+         */
+        fun of(firstByte: Byte): PayloadEncoding = if (firstByte < 0) CBOR else JSON
+    }
+}
+
+/**
+ * Strings a CBOR item may refer back to, following the stringref extension
+ * (tag 256 opens a namespace, tag 25 refers to the n-th string of it).
+ *
+ * Entries are ranges of the source array, decoded on first use. A table may continue
+ * a [fork] of another one, so lazily decoded parts of a payload see exactly the strings
+ * that preceded them. The table a fork is taken from must not grow afterwards from
+ * another thread.
+ */
+class CborStringTable private constructor(
+    private val parent: CborStringTable?,
+    private val parentSize: Int
+) {
+    constructor() : this(null, 0)
+
+    private var offsets = IntArray(16)
+    private var lengths = IntArray(16)
+    private var decoded = arrayOfNulls<String>(16)
+    private var count = 0
+
+    val size: Int
+        get() = parentSize + count
+
+    /**
+     * Add the string at [offset] if it is long enough to be worth referring to
+     */
+    fun add(offset: Int, length: Int) {
+        if (length < minLength(size)) return
+        if (count == offsets.size) {
+            offsets = offsets.copyOf(count * 2)
+            lengths = lengths.copyOf(count * 2)
+            decoded = decoded.copyOf(count * 2)
+        }
+        offsets[count] = offset
+        lengths[count] = length
+        count++
+    }
+
+    fun get(index: Int, source: ByteArray): String {
+        if (index < parentSize) return parent!!.get(index, source)
+        val i = index - parentSize
+        if (i !in 0 until count) throw MalformedJsonException("Unknown string reference $index")
+        return decoded[i] ?: String(source, offsets[i], lengths[i], Charsets.UTF_8).also { decoded[i] = it }
+    }
+
+    /**
+     * Table holding the strings added so far, which grows independently from now on
+     */
+    fun fork(): CborStringTable = CborStringTable(this, size)
+
+    companion object {
+        /**
+         * Shortest string, in UTF-8 bytes, that is added at [index]; a reference must
+         * be shorter than the string it replaces
+         */
+        fun minLength(index: Int): Int = when {
+            index < 24 -> 3
+            index < 256 -> 4
+            index < 65536 -> 5
+            else -> 7
+        }
+    }
+}
+
+/**
+ * [JsonWriter] producing CBOR, so the protocol's type adapters write either encoding.
+ *
+ * Containers are written with indefinite length, which keeps encoding single-pass like
+ * JSON. Strings long enough are written once and referred to afterwards (stringref),
+ * which turns the field names and type names repeated across a variable tree into
+ * two or three bytes each.
+ */
+class CborWriter(private val out: OutputStream) : JsonWriter(UNWRITABLE) {
+
+    private val strings = HashMap<String, Int>()
+    private var depth = 0
+    private var started = false
+    private var deferredName: String? = null
+    private val scratch = ByteArray(9)
+
+    override fun beginObject(): JsonWriter {
+        beforeValue()
+        depth++
+        out.write((MAJOR_MAP shl 5) or INDEFINITE)
+        return this
+    }
+
+    override fun endObject(): JsonWriter = end()
+
+    override fun beginArray(): JsonWriter {
+        beforeValue()
+        depth++
+        out.write((MAJOR_ARRAY shl 5) or INDEFINITE)
+        return this
+    }
+
+    override fun endArray(): JsonWriter = end()
+
+    private fun end(): JsonWriter {
+        if (depth == 0) throw IllegalStateException("Nesting problem")
+        depth--
+        out.write(BREAK)
+        return this
+    }
+
+    override fun name(name: String): JsonWriter {
+        if (deferredName != null || depth == 0) throw IllegalStateException("Unexpected name $name")
+        deferredName = name
+        return this
+    }
+
+    override fun value(value: String?): JsonWriter {
+        if (value == null) return nullValue()
+        beforeValue()
+        writeString(value)
+        return this
+    }
+
+    override fun value(value: Boolean): JsonWriter {
+        beforeValue()
+        out.write(if (value) TRUE else FALSE)
+        return this
+    }
+
+    // value(java.lang.Boolean) cannot be overridden next to value(boolean) from Kotlin;
+    // the protocol adapters only write primitive booleans
+
+    override fun value(value: Float): JsonWriter = value(value.toDouble())
+
+    override fun value(value: Long): JsonWriter {
+        beforeValue()
+        if (value >= 0) writeHead(MAJOR_UNSIGNED, value) else writeHead(MAJOR_NEGATIVE, -1 - value)
+        return this
+    }
+
+    override fun value(value: Double): JsonWriter {
+        beforeValue()
+        val single = value.toFloat()
+        if (single.toDouble() == value || value.isNaN()) {
+            writeBits(FLOAT32, java.lang.Float.floatToIntBits(single).toLong(), 4)
+        } else {
+            writeBits(FLOAT64, java.lang.Double.doubleToLongBits(value), 8)
+        }
+        return this
+    }
+
+    override fun value(value: Number?): JsonWriter {
+        return when (value) {
+            null -> nullValue()
+            is Int, is Long, is Short, is Byte -> value(value.toLong())
+            else -> {
+                val text = value.toString()
+                text.toLongOrNull()?.let { value(it) } ?: value(text.toDouble())
+            }
+        }
+    }
+
+    override fun nullValue(): JsonWriter {
+        if (deferredName != null && !serializeNulls) {
+            // Like JsonWriter, a null field is omitted altogether
+            deferredName = null
+            return this
+        }
+        beforeValue()
+        out.write(NULL)
+        return this
+    }
+
+    /**
+     * Transcode a JSON value, for messages that only have their JSON form
+     */
+    override fun jsonValue(value: String?): JsonWriter {
+        if (value == null) return nullValue()
+        transcode(JsonReader(StringReader(value)))
+        return this
+    }
+
+    /**
+     * Write [item], the encoding of one complete CBOR item, as the top-level value
+     */
+    fun rawValue(item: ByteArray): JsonWriter {
+        if (started) throw IllegalStateException("Raw values must be the whole payload")
+        started = true
+        out.write(item)
+        return this
+    }
+
+    override fun flush() {
+        out.flush()
+    }
+
+    override fun close() {
+        if (depth > 0) throw IOException("Incomplete document")
+        out.close()
+    }
+
+    private fun transcode(reader: JsonReader) {
+        when (reader.peek()) {
+            JsonToken.BEGIN_OBJECT -> {
+                reader.beginObject()
+                beginObject()
+                while (reader.hasNext()) {
+                    name(reader.nextName())
+                    transcode(reader)
+                }
+                reader.endObject()
+                endObject()
+            }
+            JsonToken.BEGIN_ARRAY -> {
+                reader.beginArray()
+                beginArray()
+                while (reader.hasNext()) transcode(reader)
+                reader.endArray()
+                endArray()
+            }
+            JsonToken.STRING -> value(reader.nextString())
+            JsonToken.NUMBER -> {
+                val text = reader.nextString()
+                text.toLongOrNull()?.let { value(it) } ?: value(text.toDouble())
+            }
+            JsonToken.BOOLEAN -> value(reader.nextBoolean())
+            JsonToken.NULL -> {
+                reader.nextNull()
+                nullValue()
+            }
+            else -> throw MalformedJsonException("Unexpected ${reader.peek()}")
+        }
+    }
+
+    private fun beforeValue() {
+        if (!started) {
+            started = true
+            // Open the stringref namespace around the whole payload
+            out.write(TAG_2BYTES)
+            out.write(TAG_STRINGREF_NAMESPACE shr 8)
+            out.write(TAG_STRINGREF_NAMESPACE and 0xff)
+        }
+        deferredName?.let {
+            deferredName = null
+            writeString(it)
+        }
+    }
+
+    private fun writeString(value: String) {
+        val index = strings[value]
+        if (index != null) {
+            out.write(TAG_1BYTE)
+            out.write(TAG_STRINGREF)
+            writeHead(MAJOR_UNSIGNED, index.toLong())
+            return
+        }
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        writeHead(MAJOR_TEXT, bytes.size.toLong())
+        out.write(bytes)
+        if (bytes.size >= CborStringTable.minLength(strings.size)) {
+            strings[value] = strings.size
+        }
+    }
+
+    private fun writeHead(major: Int, argument: Long) {
+        val head = major shl 5
+        when {
+            argument < 24 -> out.write(head or argument.toInt())
+            argument < 0x100 -> writeBits(head or 24, argument, 1)
+            argument < 0x10000 -> writeBits(head or 25, argument, 2)
+            argument < 0x100000000L -> writeBits(head or 26, argument, 4)
+            else -> writeBits(head or 27, argument, 8)
+        }
+    }
+
+    private fun writeBits(head: Int, bits: Long, bytes: Int) {
+        scratch[0] = head.toByte()
+        for (i in 1..bytes) {
+            scratch[i] = (bits ushr ((bytes - i) * 8)).toByte()
+        }
+        out.write(scratch, 0, bytes + 1)
+    }
+
+    private companion object {
+        val UNWRITABLE = object : Writer() {
+            override fun write(cbuf: CharArray, off: Int, len: Int) = throw AssertionError()
+            override fun flush() = throw AssertionError()
+            override fun close() = throw AssertionError()
+        }
+    }
+}
+
+/**
+ * [JsonReader] over a CBOR item, so the protocol's type adapters read either encoding.
+ *
+ * Numbers read as strings and strings as numbers where an adapter asks for that, like
+ * JsonReader does. Strings referred to through stringref are decoded once per payload.
+ *
+ * @param strings Strings preceding [offset] in the payload, for a slice of a larger item
+ */
+class CborReader(
+    private val bytes: ByteArray,
+    offset: Int = 0,
+    private val end: Int = bytes.size,
+    val strings: CborStringTable = CborStringTable()
+) : JsonReader(UNREADABLE) {
+
+    /**
+     * Offset of the next unread byte
+     */
+    var position: Int = offset
+        private set
+
+    // Per open container: remaining items (-1 while indefinite), names and values of a map count separately
+    private var remaining = IntArray(16)
+    private var isMap = BooleanArray(16)
+    private var depth = 0
+
+    // Token at [position], once peeked; tags in front of it are consumed
+    private var peeked: JsonToken? = null
+
+    override fun peek(): JsonToken {
+        peeked?.let { return it }
+        val token = if (depth == 0 && position >= end) {
+            JsonToken.END_DOCUMENT
+        } else if (depth > 0 && atContainerEnd()) {
+            if (isMap[depth - 1]) JsonToken.END_OBJECT else JsonToken.END_ARRAY
+        } else if (depth > 0 && isMap[depth - 1] && expectsName()) {
+            skipTags()
+            JsonToken.NAME
+        } else {
+            valueToken()
+        }
+        peeked = token
+        return token
+    }
+
+    override fun hasNext(): Boolean {
+        val token = peek()
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT
+    }
+
+    override fun beginObject() {
+        expect(JsonToken.BEGIN_OBJECT)
+        open(true, itemCount(MAJOR_MAP))
+    }
+
+    override fun endObject() {
+        expect(JsonToken.END_OBJECT)
+        closeContainer()
+    }
+
+    override fun beginArray() {
+        expect(JsonToken.BEGIN_ARRAY)
+        open(false, itemCount(MAJOR_ARRAY))
+    }
+
+    override fun endArray() {
+        expect(JsonToken.END_ARRAY)
+        closeContainer()
+    }
+
+    override fun nextName(): String {
+        expect(JsonToken.NAME)
+        val name = when (majorOf(byteAt(position) and 0xff)) {
+            MAJOR_UNSIGNED, MAJOR_NEGATIVE -> readInteger().toString()
+            MAJOR_BYTES, MAJOR_TEXT, MAJOR_TAG -> readText()
+            else -> throw unexpected("a name")
+        }
+        consumed()
+        return name
+    }
+
+    override fun nextString(): String {
+        val value = when (peek()) {
+            JsonToken.STRING -> readText()
+            JsonToken.NUMBER -> readNumberText()
+            else -> throw unexpected("a string")
+        }
+        consumed()
+        return value
+    }
+
+    override fun nextBoolean(): Boolean {
+        expect(JsonToken.BOOLEAN)
+        val value = byteAt(position++) and 0xff == TRUE
+        consumed()
+        return value
+    }
+
+    override fun nextNull() {
+        expect(JsonToken.NULL)
+        position++
+        consumed()
+    }
+
+    override fun nextLong(): Long {
+        val value = when (peek()) {
+            JsonToken.NUMBER -> if (isFloat()) readFloat().let { d ->
+                d.toLong().also { if (it.toDouble() != d) throw NumberFormatException("Expected a long but was $d") }
+            } else readInteger()
+            JsonToken.STRING -> readText().toLong()
+            else -> throw unexpected("a long")
+        }
+        consumed()
+        return value
+    }
+
+    override fun nextInt(): Int {
+        val value = nextLong()
+        if (value.toInt().toLong() != value) throw NumberFormatException("Expected an int but was $value")
+        return value.toInt()
+    }
+
+    override fun nextDouble(): Double {
+        val value = when (peek()) {
+            JsonToken.NUMBER -> if (isFloat()) readFloat() else readInteger().toDouble()
+            JsonToken.STRING -> readText().toDouble()
+            else -> throw unexpected("a double")
+        }
+        consumed()
+        return value
+    }
+
+    /**
+     * Skip the next value; strings inside it still enter the string table, so later
+     * references resolve and slices taken before it can be decoded on their own
+     */
+    override fun skipValue() {
+        when (peek()) {
+            JsonToken.BEGIN_OBJECT, JsonToken.BEGIN_ARRAY -> {
+                if (peek() == JsonToken.BEGIN_OBJECT) beginObject() else beginArray()
+                val target = depth - 1
+                while (depth > target) {
+                    when (peek()) {
+                        JsonToken.END_OBJECT -> endObject()
+                        JsonToken.END_ARRAY -> endArray()
+                        JsonToken.BEGIN_OBJECT -> beginObject()
+                        JsonToken.BEGIN_ARRAY -> beginArray()
+                        else -> skipScalar()
+                    }
+                }
+            }
+            JsonToken.END_OBJECT, JsonToken.END_ARRAY, JsonToken.END_DOCUMENT -> throw unexpected("a value")
+            else -> skipScalar()
+        }
+    }
+
+    override fun close() {
+        peeked = JsonToken.END_DOCUMENT
+        position = end
+    }
+
+    override fun toString(): String = "CborReader at byte $position"
+
+    private fun skipScalar() {
+        when (majorOf(byteAt(position) and 0xff)) {
+            MAJOR_BYTES, MAJOR_TEXT, MAJOR_TAG -> readText()
+            else -> skipSimple()
+        }
+        consumed()
+    }
+
+    private fun valueToken(): JsonToken {
+        skipTags()
+        val head = byteAt(position) and 0xff
+        return when (majorOf(head)) {
+            MAJOR_UNSIGNED, MAJOR_NEGATIVE -> JsonToken.NUMBER
+            MAJOR_BYTES, MAJOR_TEXT -> JsonToken.STRING
+            MAJOR_ARRAY -> JsonToken.BEGIN_ARRAY
+            MAJOR_MAP -> JsonToken.BEGIN_OBJECT
+            MAJOR_TAG -> JsonToken.STRING // a string reference, other tags are skipped above
+            else -> when (head) {
+                FALSE, TRUE -> JsonToken.BOOLEAN
+                NULL, UNDEFINED -> JsonToken.NULL
+                FLOAT16, FLOAT32, FLOAT64 -> JsonToken.NUMBER
+                else -> throw unexpected("a value")
+            }
+        }
+    }
+
+    /**
+     * Consume tags in front of the next item, except a string reference which is the item
+     */
+    private fun skipTags() {
+        while (position < end && majorOf(byteAt(position) and 0xff) == MAJOR_TAG) {
+            val start = position
+            val tag = readArgument()
+            when (tag) {
+                TAG_STRINGREF.toLong() -> {
+                    position = start
+                    return
+                }
+                TAG_STRINGREF_NAMESPACE.toLong() -> if (depth > 0) {
+                    throw MalformedJsonException("Nested stringref namespaces are not supported")
+                }
+            }
+        }
+    }
+
+    private fun readText(): String {
+        if (majorOf(byteAt(position) and 0xff) == MAJOR_TAG) {
+            if (readArgument() != TAG_STRINGREF.toLong()) throw unexpected("a string reference")
+            return strings.get(readArgument().toInt(), bytes)
+        }
+        return readStringBytes(register = true)
+    }
+
+    private fun readStringBytes(register: Boolean): String {
+        if (byteAt(position) and 0x1f == INDEFINITE) {
+            // Chunked string: never a stringref candidate
+            position++
+            val text = StringBuilder()
+            while (byteAt(position) and 0xff != BREAK) {
+                text.append(readStringBytes(register = false))
+            }
+            position++
+            return text.toString()
+        }
+        val length = readArgument().toInt()
+        val start = position
+        if (length < 0 || start + length > end) throw MalformedJsonException("String exceeds payload at byte $start")
+        position = start + length
+        if (register) strings.add(start, length)
+        return String(bytes, start, length, Charsets.UTF_8)
+    }
+
+    private fun readInteger(): Long {
+        val negative = majorOf(byteAt(position) and 0xff) == MAJOR_NEGATIVE
+        val argument = readArgument()
+        return if (negative) -1 - argument else argument
+    }
+
+    private fun isFloat(): Boolean = (byteAt(position) and 0xff).let { it == FLOAT16 || it == FLOAT32 || it == FLOAT64 }
+
+    private fun readFloat(): Double {
+        return when (byteAt(position++) and 0xff) {
+            FLOAT16 -> halfToDouble(readBits(2).toInt())
+            FLOAT32 -> java.lang.Float.intBitsToFloat(readBits(4).toInt()).toDouble()
+            else -> java.lang.Double.longBitsToDouble(readBits(8))
+        }
+    }
+
+    private fun readNumberText(): String {
+        if (!isFloat()) return readInteger().toString()
+        val value = readFloat()
+        return if (value == Math.rint(value) && !value.isInfinite() && Math.abs(value) < 1e15) {
+            value.toLong().toString()
+        } else {
+            value.toString()
+        }
+    }
+
+    private fun halfToDouble(half: Int): Double {
+        val exponent = (half shr 10) and 0x1f
+        val mantissa = half and 0x3ff
+        val value = when (exponent) {
+            0 -> Math.scalb(mantissa.toDouble(), -24)
+            31 -> if (mantissa == 0) Double.POSITIVE_INFINITY else Double.NaN
+            else -> Math.scalb((mantissa + 1024).toDouble(), exponent - 25)
+        }
+        return if (half and 0x8000 != 0) -value else value
+    }
+
+    /**
+     * Read the head at [position] and return its argument
+     */
+    private fun readArgument(): Long {
+        val info = byteAt(position++) and 0x1f
+        return when {
+            info < 24 -> info.toLong()
+            info == 24 -> readBits(1)
+            info == 25 -> readBits(2)
+            info == 26 -> readBits(4)
+            info == 27 -> readBits(8).also { if (it < 0) throw MalformedJsonException("Argument out of range") }
+            else -> throw MalformedJsonException("Unexpected additional info $info at byte ${position - 1}")
+        }
+    }
+
+    private fun readBits(count: Int): Long {
+        var value = 0L
+        repeat(count) {
+            value = (value shl 8) or (byteAt(position++).toLong() and 0xff)
+        }
+        return value
+    }
+
+    /**
+     * Items of the container starting at [position], names and values counted separately,
+     * or -1 for indefinite length; consumes its head
+     */
+    private fun itemCount(major: Int): Int {
+        if (byteAt(position) and 0x1f == INDEFINITE) {
+            position++
+            return -1
+        }
+        val count = readArgument()
+        if (count > Int.MAX_VALUE / 2) throw MalformedJsonException("Container too large")
+        return count.toInt() * (if (major == MAJOR_MAP) 2 else 1)
+    }
+
+    /**
+     * Skip a number, boolean or null
+     */
+    private fun skipSimple() {
+        when (val head = byteAt(position) and 0xff) {
+            FALSE, TRUE, NULL, UNDEFINED -> position++
+            FLOAT16 -> position += 3
+            FLOAT32 -> position += 5
+            FLOAT64 -> position += 9
+            else -> if (majorOf(head) <= MAJOR_NEGATIVE) readArgument() else throw unexpected("a scalar")
+        }
+    }
+
+    private fun open(map: Boolean, count: Int) {
+        peeked = null
+        if (depth == remaining.size) {
+            remaining = remaining.copyOf(depth * 2)
+            isMap = isMap.copyOf(depth * 2)
+        }
+        remaining[depth] = count
+        isMap[depth] = map
+        depth++
+    }
+
+    private fun closeContainer() {
+        peeked = null
+        depth--
+        if (remaining[depth] < 0) {
+            position++ // break
+        }
+        consumed()
+    }
+
+    /**
+     * An item of the enclosing container has been read
+     */
+    private fun consumed() {
+        peeked = null
+        if (depth == 0) return
+        val i = depth - 1
+        if (remaining[i] > 0) {
+            remaining[i]--
+        } else if (remaining[i] < 0) {
+            // Indefinite: count items down from -1 to track name/value parity in maps
+            remaining[i]--
+        }
+    }
+
+    private fun atContainerEnd(): Boolean {
+        val count = remaining[depth - 1]
+        return if (count < 0) byteAt(position) and 0xff == BREAK else count == 0
+    }
+
+    /**
+     * Inside a map, whether the next item is a name: an even number of items has been read
+     */
+    private fun expectsName(): Boolean {
+        val count = remaining[depth - 1]
+        return if (count < 0) (-1 - count) % 2 == 0 else count % 2 == 0
+    }
+
+    private fun expect(token: JsonToken) {
+        if (peek() != token) throw unexpected(token.name)
+    }
+
+    private fun byteAt(index: Int): Int {
+        if (index >= end) throw MalformedJsonException("Unexpected end of CBOR payload")
+        return bytes[index].toInt()
+    }
+
+    private fun unexpected(expected: String): MalformedJsonException {
+        return MalformedJsonException("Expected $expected but was ${peeked ?: "byte 0x%02x".format(bytes.getOrNull(position))} at byte $position")
+    }
+
+    private companion object {
+        val UNREADABLE = object : Reader() {
+            override fun read(cbuf: CharArray, off: Int, len: Int) = throw AssertionError()
+            override fun close() = throw AssertionError()
+        }
+    }
+}
+
+// CBOR major types, the top three bits of an initial byte
+private const val MAJOR_UNSIGNED = 0
+private const val MAJOR_NEGATIVE = 1
+private const val MAJOR_BYTES = 2
+private const val MAJOR_TEXT = 3
+private const val MAJOR_ARRAY = 4
+private const val MAJOR_MAP = 5
+private const val MAJOR_TAG = 6
+
+// Initial bytes
+private const val INDEFINITE = 0x1f
+private const val FALSE = 0xf4
+private const val TRUE = 0xf5
+private const val NULL = 0xf6
+private const val UNDEFINED = 0xf7
+private const val FLOAT16 = 0xf9
+private const val FLOAT32 = 0xfa
+private const val FLOAT64 = 0xfb
+private const val BREAK = 0xff
+private const val TAG_1BYTE = (MAJOR_TAG shl 5) or 24
+private const val TAG_2BYTES = (MAJOR_TAG shl 5) or 25
+
+private fun majorOf(head: Int) = head ushr 5
+
+// stringref extension, IANA registered tags
+private const val TAG_STRINGREF = 25
+private const val TAG_STRINGREF_NAMESPACE = 256
@@ -0,0 +1,738 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import com.google.gson.TypeAdapter
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import com.google.gson.stream.JsonWriter
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.io.Reader
+
+/**
+ * Shared JSON codec of the Emmy protocol.
+ *
+ * Every protocol class has a hand-written [TypeAdapter], so messages are encoded and
+ * decoded without reflection and without creating a Gson instance per message.
+ * The wire format is the one reflective Gson produced: same field names and order,
+ * null fields omitted, unknown fields skipped. Missing fields decode to empty values.
+ *
+ * The same adapters read and write CBOR through [CborReader] and [CborWriter].
+ */
+object DebugProtocolCodec {
+
+    val gson: Gson = GsonBuilder()
+        .disableHtmlEscaping()
+        // IDE -> debugger
+        .registerTypeAdapter(InitRequest::class.java, InitRequestAdapter.nullSafe())
+        .registerTypeAdapter(ReadyRequest::class.java, ReadyRequestAdapter.nullSafe())
+        .registerTypeAdapter(DebugActionRequest::class.java, DebugActionRequestAdapter.nullSafe())
+        .registerTypeAdapter(AddBreakpointRequest::class.java, AddBreakpointRequestAdapter.nullSafe())
+        .registerTypeAdapter(RemoveBreakpointRequest::class.java, RemoveBreakpointRequestAdapter.nullSafe())
+        .registerTypeAdapter(EvalRequest::class.java, EvalRequestAdapter.nullSafe())
+        .registerTypeAdapter(EvalBatchRequest::class.java, EvalBatchRequestAdapter.nullSafe())
+        .registerTypeAdapter(StackSnapshotRequest::class.java, StackSnapshotRequestAdapter.nullSafe())
+        .registerTypeAdapter(SharedMemoryRequest::class.java, SharedMemoryRequestAdapter.nullSafe())
+        // Debugger -> IDE
+        .registerTypeAdapter(InitResponse::class.java, InitResponseAdapter.nullSafe())
+        .registerTypeAdapter(SharedMemoryResponse::class.java, SharedMemoryResponseAdapter.nullSafe())
+        .registerTypeAdapter(BreakpointNotification::class.java, BreakpointNotificationAdapter.nullSafe())
+        .registerTypeAdapter(BreakDeltaNotification::class.java, BreakDeltaNotificationAdapter.nullSafe())
+        .registerTypeAdapter(AttachedNotification::class.java, AttachedNotificationAdapter.nullSafe())
+        .registerTypeAdapter(LogNotification::class.java, LogNotificationAdapter.nullSafe())
+        .registerTypeAdapter(EvalResponse::class.java, EvalResponseAdapter.nullSafe())
+        .registerTypeAdapter(EvalBatchResponse::class.java, EvalBatchResponseAdapter.nullSafe())
+        // Data structures
+        .registerTypeAdapter(DebugBreakpoint::class.java, DebugBreakpointAdapter.nullSafe())
+        .registerTypeAdapter(DebugStackFrame::class.java, DebugStackFrameAdapter.nullSafe())
+        .registerTypeAdapter(DebugStackFrameDelta::class.java, DebugStackFrameDeltaAdapter.nullSafe())
+        .registerTypeAdapter(DebugVariable::class.java, DebugVariableAdapter.nullSafe())
+        .create()
+
+    fun toJson(value: Any): String = gson.toJson(value)
+
+    fun write(value: Any, writer: JsonWriter) = gson.toJson(value, value.javaClass, writer)
+
+    fun <T> fromJson(json: String, type: Class<T>): T? = gson.fromJson(json, type)
+
+    fun <T> fromJson(reader: Reader, type: Class<T>): T? = gson.fromJson(reader, type)
+
+    fun writeCbor(value: Any, out: OutputStream) = write(value, CborWriter(out))
+
+    fun toCbor(value: Any): ByteArray = ByteArrayOutputStream().also { writeCbor(value, it) }.toByteArray()
+
+    fun <T> fromCbor(bytes: ByteArray, type: Class<T>): T? = gson.fromJson<T>(CborReader(bytes), type)
+
+    /**
+     * Read a JSON array of variables, as found in stack frames
+     */
+    fun readVariables(reader: Reader): List<DebugVariable> = readVariables(JsonReader(reader))
+
+    /**
+     * Read an array of variables from a reader of either encoding
+     */
+    fun readVariables(reader: JsonReader): List<DebugVariable> = DebugVariableAdapter.readVariables(reader).orEmpty()
+
+    /**
+     * Sequence numbers of an [EvalResponse] or [EvalBatchResponse], read from a reader of
+     * either encoding without decoding the values, so stale responses can be dropped cheaply
+     */
+    fun readEvalSeqs(reader: JsonReader): List<Int> {
+        val seqs = ArrayList<Int>(1)
+        reader.readObject { name ->
+            when (name) {
+                "seq" -> seqs.add(reader.readInt())
+                "results" -> if (!reader.nextIsNull()) {
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        reader.readObject { field ->
+                            if (field == "seq") seqs.add(reader.readInt()) else reader.skipValue()
+                        }
+                    }
+                    reader.endArray()
+                }
+                else -> reader.skipValue()
+            }
+        }
+        return seqs
+    }
+}
+
+// ================================================================================================
+// REQUEST ADAPTERS
+// ================================================================================================
+
+private object InitRequestAdapter : TypeAdapter<InitRequest>() {
+    override fun write(out: JsonWriter, value: InitRequest) {
+        out.beginObject()
+        out.name("emmyHelper").value(value.emmyHelper)
+        out.name("ext").writeStrings(value.ext.asList())
+        out.name("capabilities").writeStrings(value.capabilities.asList())
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): InitRequest {
+        var emmyHelper = ""
+        var ext: List<String>? = null
+        var capabilities: List<String>? = null
+        input.readObject { name ->
+            when (name) {
+                "emmyHelper" -> emmyHelper = input.readString() ?: ""
+                "ext" -> ext = input.readStrings()
+                "capabilities" -> capabilities = input.readStrings()
+                else -> input.skipValue()
+            }
+        }
+        return InitRequest(emmyHelper, ext.orEmpty().toTypedArray(), capabilities.orEmpty().toTypedArray())
+    }
+}
+
+private object ReadyRequestAdapter : TypeAdapter<ReadyRequest>() {
+    override fun write(out: JsonWriter, value: ReadyRequest) {
+        out.beginObject()
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): ReadyRequest {
+        input.skipValue()
+        return ReadyRequest()
+    }
+}
+
+private object StackSnapshotRequestAdapter : TypeAdapter<StackSnapshotRequest>() {
+    override fun write(out: JsonWriter, value: StackSnapshotRequest) {
+        out.beginObject()
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): StackSnapshotRequest {
+        input.skipValue()
+        return StackSnapshotRequest()
+    }
+}
+
+private object SharedMemoryRequestAdapter : TypeAdapter<SharedMemoryRequest>() {
+    override fun write(out: JsonWriter, value: SharedMemoryRequest) {
+        out.beginObject()
+        out.name("cmd").value(value.cmd.toLong())
+        out.name("path").value(value.path)
+        out.name("capacity").value(value.capacity.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): SharedMemoryRequest {
+        var path = ""
+        var capacity = 0
+        input.readObject { name ->
+            when (name) {
+                "path" -> path = input.readString() ?: ""
+                "capacity" -> capacity = input.readInt()
+                else -> input.skipValue()
+            }
+        }
+        return SharedMemoryRequest(path, capacity)
+    }
+}
+
+private object DebugActionRequestAdapter : TypeAdapter<DebugActionRequest>() {
+    override fun write(out: JsonWriter, value: DebugActionRequest) {
+        out.beginObject()
+        out.name("action").value(value.action.toLong())
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): DebugActionRequest {
+        var action = 0
+        input.readObject { name ->
+            when (name) {
+                "action" -> action = input.readInt()
+                else -> input.skipValue()
+            }
+        }
+        return DebugActionRequest(action)
+    }
+}
+
+private object AddBreakpointRequestAdapter : TypeAdapter<AddBreakpointRequest>() {
+    override fun write(out: JsonWriter, value: AddBreakpointRequest) {
+        out.beginObject()
+        out.name("breakPoints").writeList(value.breakPoints, DebugBreakpointAdapter)
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): AddBreakpointRequest {
+        var breakPoints: List<DebugBreakpoint>? = null
+        input.readObject { name ->
+            when (name) {
+                "breakPoints" -> breakPoints = input.readList(DebugBreakpointAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return AddBreakpointRequest(breakPoints.orEmpty())
+    }
+}
+
+private object RemoveBreakpointRequestAdapter : TypeAdapter<RemoveBreakpointRequest>() {
+    override fun write(out: JsonWriter, value: RemoveBreakpointRequest) {
+        out.beginObject()
+        out.name("breakPoints").writeList(value.breakPoints, DebugBreakpointAdapter)
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): RemoveBreakpointRequest {
+        var breakPoints: List<DebugBreakpoint>? = null
+        input.readObject { name ->
+            when (name) {
+                "breakPoints" -> breakPoints = input.readList(DebugBreakpointAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return RemoveBreakpointRequest(breakPoints.orEmpty())
+    }
+}
+
+private object EvalRequestAdapter : TypeAdapter<EvalRequest>() {
+    override fun write(out: JsonWriter, value: EvalRequest) {
+        out.beginObject()
+        writeFields(out, value)
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    fun writeFields(out: JsonWriter, value: EvalRequest) {
+        out.name("expr").value(value.expr)
+        out.name("stackLevel").value(value.stackLevel.toLong())
+        out.name("cacheId").value(value.cacheId.toLong())
+        out.name("depth").value(value.depth.toLong())
+        out.name("seq").value(value.seq.toLong())
+    }
+
+    override fun read(input: JsonReader): EvalRequest {
+        var expr = ""
+        var stackLevel = 0
+        var cacheId = 0
+        var depth = 0
+        var seq = 0
+        input.readObject { name ->
+            when (name) {
+                "expr" -> expr = input.readString() ?: ""
+                "stackLevel" -> stackLevel = input.readInt()
+                "cacheId" -> cacheId = input.readInt()
+                "depth" -> depth = input.readInt()
+                "seq" -> seq = input.readInt()
+                else -> input.skipValue()
+            }
+        }
+        return EvalRequest(expr, stackLevel, cacheId, depth, seq)
+    }
+}
+
+// An evaluation inside a batch, without a cmd of its own
+private object EvalBatchEntryAdapter : TypeAdapter<EvalRequest>() {
+    override fun write(out: JsonWriter, value: EvalRequest) {
+        out.beginObject()
+        EvalRequestAdapter.writeFields(out, value)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): EvalRequest = EvalRequestAdapter.read(input)
+}
+
+private object EvalBatchRequestAdapter : TypeAdapter<EvalBatchRequest>() {
+    override fun write(out: JsonWriter, value: EvalBatchRequest) {
+        out.beginObject()
+        out.name("evals").writeList(value.evals, EvalBatchEntryAdapter)
+        out.name("cmd").value(value.cmd.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): EvalBatchRequest {
+        var evals: List<EvalRequest>? = null
+        input.readObject { name ->
+            when (name) {
+                "evals" -> evals = input.readList(EvalBatchEntryAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return EvalBatchRequest(evals.orEmpty())
+    }
+}
+
+// ================================================================================================
+// RESPONSE/NOTIFICATION ADAPTERS
+// ================================================================================================
+
+private object InitResponseAdapter : TypeAdapter<InitResponse>() {
+    override fun write(out: JsonWriter, value: InitResponse) {
+        out.beginObject()
+        value.capabilities?.let { out.name("capabilities").writeStrings(it) }
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): InitResponse {
+        var capabilities: List<String>? = null
+        input.readObject { name ->
+            when (name) {
+                "capabilities" -> capabilities = input.readStrings()
+                else -> input.skipValue()
+            }
+        }
+        return InitResponse(capabilities)
+    }
+}
+
+private object SharedMemoryResponseAdapter : TypeAdapter<SharedMemoryResponse>() {
+    override fun write(out: JsonWriter, value: SharedMemoryResponse) {
+        out.beginObject()
+        out.name("success").value(value.success)
+        value.error?.let { out.name("error").value(it) }
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): SharedMemoryResponse {
+        var success = false
+        var error: String? = null
+        input.readObject { name ->
+            when (name) {
+                "success" -> success = input.readBoolean()
+                "error" -> error = input.readString()
+                else -> input.skipValue()
+            }
+        }
+        return SharedMemoryResponse(success, error)
+    }
+}
+
+private object BreakpointNotificationAdapter : TypeAdapter<BreakpointNotification>() {
+    override fun write(out: JsonWriter, value: BreakpointNotification) {
+        out.beginObject()
+        out.name("stacks").writeList(value.stacks, DebugStackFrameAdapter)
+        if (value.snapshot != 0) out.name("snapshot").value(value.snapshot.toLong())
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): BreakpointNotification {
+        var stacks: List<DebugStackFrame>? = null
+        var snapshot = 0
+        input.readObject { name ->
+            when (name) {
+                "stacks" -> stacks = input.readList(DebugStackFrameAdapter)
+                "snapshot" -> snapshot = input.readInt()
+                else -> input.skipValue()
+            }
+        }
+        return BreakpointNotification(stacks.orEmpty(), snapshot)
+    }
+}
+
+private object BreakDeltaNotificationAdapter : TypeAdapter<BreakDeltaNotification>() {
+    override fun write(out: JsonWriter, value: BreakDeltaNotification) {
+        out.beginObject()
+        out.name("snapshot").value(value.snapshot.toLong())
+        out.name("base").value(value.base.toLong())
+        out.name("stacks").writeList(value.stacks, DebugStackFrameDeltaAdapter)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): BreakDeltaNotification {
+        var snapshot = 0
+        var base = 0
+        var stacks: List<DebugStackFrameDelta>? = null
+        input.readObject { name ->
+            when (name) {
+                "snapshot" -> snapshot = input.readInt()
+                "base" -> base = input.readInt()
+                "stacks" -> stacks = input.readList(DebugStackFrameDeltaAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return BreakDeltaNotification(snapshot, base, stacks.orEmpty())
+    }
+}
+
+private object AttachedNotificationAdapter : TypeAdapter<AttachedNotification>() {
+    override fun write(out: JsonWriter, value: AttachedNotification) {
+        out.beginObject()
+        out.name("state").value(value.state)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): AttachedNotification {
+        var state = 0L
+        input.readObject { name ->
+            when (name) {
+                "state" -> state = input.readLong()
+                else -> input.skipValue()
+            }
+        }
+        return AttachedNotification(state)
+    }
+}
+
+private object LogNotificationAdapter : TypeAdapter<LogNotification>() {
+    override fun write(out: JsonWriter, value: LogNotification) {
+        out.beginObject()
+        out.name("type").value(value.type.toLong())
+        out.name("message").value(value.message)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): LogNotification {
+        var type = 0
+        var message = ""
+        input.readObject { name ->
+            when (name) {
+                "type" -> type = input.readInt()
+                "message" -> message = input.readString() ?: ""
+                else -> input.skipValue()
+            }
+        }
+        return LogNotification(type, message)
+    }
+}
+
+private object EvalResponseAdapter : TypeAdapter<EvalResponse>() {
+    override fun write(out: JsonWriter, value: EvalResponse) {
+        out.beginObject()
+        out.name("seq").value(value.seq.toLong())
+        out.name("success").value(value.success)
+        out.name("error").value(value.error)
+        value.value?.let { DebugVariableAdapter.write(out.name("value"), it) }
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): EvalResponse {
+        var seq = 0
+        var success = false
+        var error: String? = null
+        var value: DebugVariable? = null
+        input.readObject { name ->
+            when (name) {
+                "seq" -> seq = input.readInt()
+                "success" -> success = input.readBoolean()
+                "error" -> error = input.readString()
+                "value" -> value = input.readNullable(DebugVariableAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return EvalResponse(seq, success, error, value)
+    }
+}
+
+private object EvalBatchResponseAdapter : TypeAdapter<EvalBatchResponse>() {
+    override fun write(out: JsonWriter, value: EvalBatchResponse) {
+        out.beginObject()
+        out.name("results").writeList(value.results, EvalResponseAdapter)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): EvalBatchResponse {
+        var results: List<EvalResponse>? = null
+        input.readObject { name ->
+            when (name) {
+                "results" -> results = input.readList(EvalResponseAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return EvalBatchResponse(results.orEmpty())
+    }
+}
+
+// ================================================================================================
+// DATA STRUCTURE ADAPTERS
+// ================================================================================================
+
+private object DebugBreakpointAdapter : TypeAdapter<DebugBreakpoint>() {
+    override fun write(out: JsonWriter, value: DebugBreakpoint) {
+        out.beginObject()
+        out.name("file").value(value.file)
+        out.name("line").value(value.line.toLong())
+        out.name("condition").value(value.condition)
+        out.name("logMessage").value(value.logMessage)
+        out.name("hitCondition").value(value.hitCondition)
+        out.name("runToHere").value(value.runToHere)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): DebugBreakpoint {
+        var file = ""
+        var line = 0
+        var condition: String? = null
+        var logMessage: String? = null
+        var hitCondition: String? = null
+        var runToHere = false
+        input.readObject { name ->
+            when (name) {
+                "file" -> file = input.readString() ?: ""
+                "line" -> line = input.readInt()
+                "condition" -> condition = input.readString()
+                "logMessage" -> logMessage = input.readString()
+                "hitCondition" -> hitCondition = input.readString()
+                "runToHere" -> runToHere = input.readBoolean()
+                else -> input.skipValue()
+            }
+        }
+        return DebugBreakpoint(file, line, condition, logMessage, hitCondition, runToHere)
+    }
+}
+
+private object DebugStackFrameAdapter : TypeAdapter<DebugStackFrame>() {
+    override fun write(out: JsonWriter, value: DebugStackFrame) {
+        out.beginObject()
+        out.name("file").value(value.file)
+        out.name("line").value(value.line.toLong())
+        out.name("functionName").value(value.functionName)
+        out.name("level").value(value.level.toLong())
+        out.name("localVariables").writeList(value.localVariables, DebugVariableAdapter)
+        out.name("upvalueVariables").writeList(value.upvalueVariables, DebugVariableAdapter)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): DebugStackFrame {
+        var file = ""
+        var line = 0
+        var functionName = ""
+        var level = 0
+        var localVariables: List<DebugVariable>? = null
+        var upvalueVariables: List<DebugVariable>? = null
+        input.readObject { name ->
+            when (name) {
+                "file" -> file = input.readString() ?: ""
+                "line" -> line = input.readInt()
+                "functionName" -> functionName = input.readString() ?: ""
+                "level" -> level = input.readInt()
+                "localVariables" -> localVariables = input.readList(DebugVariableAdapter)
+                "upvalueVariables" -> upvalueVariables = input.readList(DebugVariableAdapter)
+                else -> input.skipValue()
+            }
+        }
+        return DebugStackFrame(file, line, functionName, level, localVariables.orEmpty(), upvalueVariables.orEmpty())
+    }
+}
+
+private object DebugStackFrameDeltaAdapter : TypeAdapter<DebugStackFrameDelta>() {
+    override fun write(out: JsonWriter, value: DebugStackFrameDelta) {
+        out.beginObject()
+        out.name("file").value(value.file)
+        out.name("line").value(value.line.toLong())
+        out.name("functionName").value(value.functionName)
+        out.name("level").value(value.level.toLong())
+        out.name("baseLevel").value(value.baseLevel.toLong())
+        if (value.localVariables.isNotEmpty())
+            out.name("localVariables").writeList(value.localVariables, DebugVariableAdapter)
+        if (value.upvalueVariables.isNotEmpty())
+            out.name("upvalueVariables").writeList(value.upvalueVariables, DebugVariableAdapter)
+        if (value.removedLocals.isNotEmpty()) out.name("removedLocals").writeStrings(value.removedLocals)
+        if (value.removedUpvalues.isNotEmpty()) out.name("removedUpvalues").writeStrings(value.removedUpvalues)
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): DebugStackFrameDelta {
+        var file = ""
+        var line = 0
+        var functionName = ""
+        var level = 0
+        var baseLevel = -1
+        var localVariables: List<DebugVariable>? = null
+        var upvalueVariables: List<DebugVariable>? = null
+        var removedLocals: List<String>? = null
+        var removedUpvalues: List<String>? = null
+        input.readObject { name ->
+            when (name) {
+                "file" -> file = input.readString() ?: ""
+                "line" -> line = input.readInt()
+                "functionName" -> functionName = input.readString() ?: ""
+                "level" -> level = input.readInt()
+                "baseLevel" -> baseLevel = if (input.nextIsNull()) -1 else input.nextInt()
+                "localVariables" -> localVariables = DebugVariableAdapter.readVariables(input)
+                "upvalueVariables" -> upvalueVariables = DebugVariableAdapter.readVariables(input)
+                "removedLocals" -> removedLocals = input.readStrings()
+                "removedUpvalues" -> removedUpvalues = input.readStrings()
+                else -> input.skipValue()
+            }
+        }
+        return DebugStackFrameDelta(
+            file, line, functionName, level, baseLevel,
+            localVariables.orEmpty(), upvalueVariables.orEmpty(),
+            removedLocals.orEmpty(), removedUpvalues.orEmpty()
+        )
+    }
+}
+
+private object DebugVariableAdapter : TypeAdapter<DebugVariable>() {
+    override fun write(out: JsonWriter, value: DebugVariable) {
+        out.beginObject()
+        out.name("name").value(value.name)
+        out.name("nameType").value(value.nameType.toLong())
+        out.name("value").value(value.value)
+        out.name("valueType").value(value.valueType.toLong())
+        out.name("valueTypeName").value(value.valueTypeName)
+        out.name("cacheId").value(value.cacheId.toLong())
+        value.children?.let { out.name("children").writeList(it, this) }
+        out.endObject()
+    }
+
+    override fun read(input: JsonReader): DebugVariable {
+        var name = ""
+        var nameType = 0
+        var value = ""
+        var valueType = 0
+        var valueTypeName = ""
+        var cacheId = 0
+        var children: List<DebugVariable>? = null
+        input.readObject { field ->
+            when (field) {
+                "name" -> name = input.readString()?.let { StringPool.intern(it, StringPool.MAX_NAME_LENGTH) } ?: ""
+                "nameType" -> nameType = input.readInt()
+                "value" -> value = input.readString()?.let { StringPool.intern(it, StringPool.MAX_VALUE_LENGTH) } ?: ""
+                "valueType" -> valueType = input.readInt()
+                "valueTypeName" -> valueTypeName = input.readString()?.let(StringPool::intern) ?: ""
+                "cacheId" -> cacheId = input.readInt()
+                "children" -> children = readVariables(input)
+                else -> input.skipValue()
+            }
+        }
+        return DebugVariable(name, nameType, value, valueType, valueTypeName, cacheId, children)
+    }
+
+    /**
+     * Read a list of variables, stored column-wise when large
+     */
+    fun readVariables(input: JsonReader): List<DebugVariable>? {
+        return input.readList(this)?.let(VariableColumns::of)
+    }
+}
+
+// ================================================================================================
+// READER/WRITER HELPERS
+// ================================================================================================
+
+private inline fun JsonReader.readObject(field: (String) -> Unit) {
+    beginObject()
+    while (hasNext()) {
+        field(nextName())
+    }
+    endObject()
+}
+
+private fun JsonReader.nextIsNull(): Boolean {
+    if (peek() != JsonToken.NULL) return false
+    nextNull()
+    return true
+}
+
+/**
+ * Strings, numbers and booleans all read as text, like Gson's String adapter
+ */
+private fun JsonReader.readString(): String? {
+    return when (peek()) {
+        JsonToken.NULL -> null.also { nextNull() }
+        JsonToken.BOOLEAN -> nextBoolean().toString()
+        else -> nextString()
+    }
+}
+
+private fun JsonReader.readInt(): Int = if (nextIsNull()) 0 else nextInt()
+
+private fun JsonReader.readLong(): Long = if (nextIsNull()) 0L else nextLong()
+
+private fun JsonReader.readBoolean(): Boolean = if (nextIsNull()) false else nextBoolean()
+
+private fun <T> JsonReader.readNullable(adapter: TypeAdapter<T>): T? = if (nextIsNull()) null else adapter.read(this)
+
+private fun <T> JsonReader.readList(adapter: TypeAdapter<T>): List<T>? {
+    if (nextIsNull()) return null
+    val list = ArrayList<T>()
+    beginArray()
+    while (hasNext()) {
+        list.add(adapter.read(this))
+    }
+    endArray()
+    return list
+}
+
+private fun JsonReader.readStrings(): List<String>? {
+    if (nextIsNull()) return null
+    val list = ArrayList<String>()
+    beginArray()
+    while (hasNext()) {
+        readString()?.let(list::add)
+    }
+    endArray()
+    return list
+}
+
+private fun <T> JsonWriter.writeList(values: List<T>, adapter: TypeAdapter<T>) {
+    beginArray()
+    values.forEach { adapter.write(this, it) }
+    endArray()
+}
+
+private fun JsonWriter.writeStrings(values: List<String>) {
+    beginArray()
+    values.forEach { value(it) }
+    endArray()
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+/**
+ * Results of the evaluations made while the debuggee stays suspended, so hovering,
+ * watches and expanding tables ask the debuggee only once per expression.
+ *
+ * Each suspend state is a generation; [invalidate] starts a new one when the debuggee
+ * resumes, steps or breaks again. A result arriving for an older generation is not stored.
+ * At most [capacity] results are kept, the least recently used are dropped first.
+ * Safe to use from any thread.
+ */
+class EvalResultCache(capacity: Int = DEFAULT_CAPACITY) {
+
+    private data class Key(val generation: Int, val stackLevel: Int, val expression: String, val depth: Int)
+
+    /**
+     * Results kept at most, 0 to cache nothing
+     */
+    @Volatile
+    var capacity: Int = capacity
+        set(value) {
+            field = value
+            synchronized(entries) { trim() }
+        }
+
+    /**
+     * Current suspend state; pass it to [put] for a result asked for now
+     */
+    @Volatile
+    var generation = 0
+        private set
+
+    // Access order, for dropping the least recently used
+    private val entries = LinkedHashMap<Key, DebugVariable>(16, 0.75f, true)
+
+    /**
+     * Number of cached results
+     */
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    /**
+     * Result of evaluating [expression] in this suspend state, if there is one
+     */
+    fun get(stackLevel: Int, expression: String, depth: Int): DebugVariable? {
+        synchronized(entries) {
+            return entries[Key(generation, stackLevel, expression, depth)]
+        }
+    }
+
+    /**
+     * Remember the result of an evaluation asked for in suspend state [generation]
+     */
+    fun put(generation: Int, stackLevel: Int, expression: String, depth: Int, value: DebugVariable) {
+        synchronized(entries) {
+            if (generation != this.generation || capacity <= 0) return
+            entries[Key(generation, stackLevel, expression, depth)] = value
+            trim()
+        }
+    }
+
+    /**
+     * Start a new suspend state and forget all results
+     */
+    fun invalidate() {
+        synchronized(entries) {
+            generation++
+            entries.clear()
+        }
+    }
+
+    private fun trim() {
+        val iterator = entries.values.iterator()
+        while (entries.size > capacity.coerceAtLeast(0) && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 256
+    }
+}
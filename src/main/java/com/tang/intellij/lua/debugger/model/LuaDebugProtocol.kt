@@ -16,7 +16,9 @@
 
 package com.tang.intellij.lua.debugger.model
 
-import com.google.gson.Gson
+import com.google.gson.stream.JsonWriter
+import java.io.Reader
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Emmy Debugger Protocol - Clean and well-documented protocol definitions
@@ -25,6 +27,10 @@ import com.google.gson.Gson
  * the IDE and the Emmy debugger. The protocol uses a simple line-based format:
  * Line 1: Command ID (int)
  * Line 2: JSON payload
+ *
+ * Optional features are negotiated during initialization: the IDE lists what it
+ * supports in [InitRequest.capabilities] and the debugger echoes the subset it
+ * accepts in [InitResponse.capabilities]. See [DebugCapabilities].
  */
 
 // ================================================================================================
@@ -59,7 +65,18 @@ enum class DebugCommand {
     LogNotify,         // Log message from debugger
 
     // Hook management
-    StartHookReq, StartHookRsp
+    StartHookReq, StartHookRsp,
+
+    // Incremental stacks, see DebugCapabilities.STACK_DELTA
+    BreakDeltaNotify,  // Debugger hit a breakpoint, stack relative to the previous one
+    StackSnapshotReq,  // IDE asks for the full stack again
+
+    // Shared memory, see DebugCapabilities.SHARED_MEMORY
+    SharedMemoryReq,   // IDE offers a mapped file to continue on
+    SharedMemoryRsp,   // Debugger mapped it or declined
+
+    // Batched evaluation, see DebugCapabilities.EVAL_BATCH
+    EvalBatchReq, EvalBatchRsp
 }
 
 /**
@@ -92,6 +109,49 @@ enum class LuaValueType {
     GROUP
 }
 
+/**
+ * Optional protocol features negotiated in the InitReq/InitRsp exchange.
+ * Debuggers that do not know a capability simply don't echo it back.
+ */
+object DebugCapabilities {
+    /**
+     * Length-prefixed frames: [cmd:int32][length:int32][payload], big-endian.
+     */
+    const val BINARY_FRAMING = "binaryFraming"
+
+    /**
+     * Binary frames above a size threshold may carry a zlib-deflated payload.
+     * Only meaningful together with [BINARY_FRAMING].
+     */
+    const val DEFLATE = "deflate"
+
+    /**
+     * Payloads may be CBOR instead of JSON, see [PayloadEncoding].
+     * Only meaningful together with [BINARY_FRAMING], line frames cannot carry binary data.
+     */
+    const val CBOR = "cbor"
+
+    /**
+     * Breaks after the first may be reported as a [BreakDeltaNotification] against the
+     * previous stack. The IDE answers a delta it cannot apply with a [StackSnapshotRequest].
+     */
+    const val STACK_DELTA = "stackDelta"
+
+    /**
+     * After the InitRsp the IDE may send a [SharedMemoryRequest]; once the debugger answers
+     * with a successful [SharedMemoryResponse], both sides exchange binary frames through
+     * the mapped file and the socket only tells whether the other side is still there.
+     * Offered only when the debugger runs on the same host, with [BINARY_FRAMING].
+     */
+    const val SHARED_MEMORY = "sharedMemory"
+
+    /**
+     * Evaluations queued together may be sent as one [EvalBatchRequest], answered with one
+     * [EvalBatchResponse]. Without it every [EvalRequest] travels on its own.
+     */
+    const val EVAL_BATCH = "evalBatch"
+}
+
 // ================================================================================================
 // BASE MESSAGE CLASSES
 // ================================================================================================
@@ -102,6 +162,13 @@ enum class LuaValueType {
 interface DebugMessage {
     val cmd: Int
     fun toJSON(): String
+
+    /**
+     * Stream the JSON payload into [writer]
+     */
+    fun writeJSON(writer: JsonWriter) {
+        writer.jsonValue(toJSON())
+    }
 }
 
 /**
@@ -110,15 +177,18 @@ interface DebugMessage {
 open class BaseDebugMessage(command: DebugCommand) : DebugMessage {
     override val cmd: Int = command.ordinal
 
-    override fun toJSON(): String = Gson().toJson(this)
+    override fun toJSON(): String = DebugProtocolCodec.toJson(this)
+
+    override fun writeJSON(writer: JsonWriter) = DebugProtocolCodec.write(this, writer)
 
     companion object {
-        private var sequenceCounter = 0
+        private val sequenceCounter = AtomicInteger()
 
         /**
-         * Generate unique sequence number for request/response matching
+         * Generate unique sequence number for request/response matching; safe from any
+         * thread and never negative, even after wrapping around
          */
-        fun nextSequence(): Int = sequenceCounter++
+        fun nextSequence(): Int = sequenceCounter.getAndIncrement() and Int.MAX_VALUE
     }
 }
 
@@ -130,21 +200,26 @@ open class BaseDebugMessage(command: DebugCommand) : DebugMessage {
  * Initialize debugger with helper code and file extensions
  * @param emmyHelper Lua helper code to inject into the debugger
  * @param ext Array of file extensions to debug (e.g., ["lua", "txt"])
+ * @param capabilities Optional features the IDE supports, see [DebugCapabilities]
  */
 data class InitRequest(
     val emmyHelper: String,
-    val ext: Array<String>
+    val ext: Array<String>,
+    val capabilities: Array<String> = emptyArray()
 ) : BaseDebugMessage(DebugCommand.InitReq) {
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (javaClass != other?.javaClass) return false
         other as InitRequest
-        return emmyHelper == other.emmyHelper && ext.contentEquals(other.ext)
+        return emmyHelper == other.emmyHelper &&
+                ext.contentEquals(other.ext) &&
+                capabilities.contentEquals(other.capabilities)
     }
 
     override fun hashCode(): Int {
         var result = emmyHelper.hashCode()
         result = 31 * result + ext.contentHashCode()
+        result = 31 * result + capabilities.contentHashCode()
         return result
     }
 }
@@ -187,25 +262,95 @@ data class RemoveBreakpointRequest(
  * @param cacheId Cache ID for table expansion
  * @param depth Maximum depth for nested tables
  * @param seq Sequence number for matching responses
+ * @param generation Suspend state the request was made in; not sent
+ * @param priority Order among queued evaluations; not sent
  */
 data class EvalRequest(
     val expr: String,
     val stackLevel: Int,
     val cacheId: Int,
     val depth: Int,
-    val seq: Int = nextSequence()
+    val seq: Int = nextSequence(),
+    val generation: Int = 0,
+    val priority: EvalPriority = EvalPriority.VISIBLE
 ) : BaseDebugMessage(DebugCommand.EvalReq)
 
+/**
+ * Which queued evaluations are sent first
+ */
+enum class EvalPriority {
+    VISIBLE,    // Shown right now: Variables and Watches nodes, hover, Evaluate dialog
+    BACKGROUND  // Asked for ahead of time, e.g. prefetched tables
+}
+
+/**
+ * Evaluate several expressions in one message, each as its [EvalRequest] describes
+ * @param evals Evaluations in the order they were queued
+ */
+data class EvalBatchRequest(
+    val evals: List<EvalRequest>
+) : BaseDebugMessage(DebugCommand.EvalBatchReq)
+
+/**
+ * Ask for the current stack in full, answered with a [BreakpointNotification].
+ * Sent when a [BreakDeltaNotification] does not apply to the stack the IDE holds.
+ */
+class StackSnapshotRequest : BaseDebugMessage(DebugCommand.StackSnapshotReq)
+
+/**
+ * Continue on shared memory, answered with a [SharedMemoryResponse].
+ * The IDE sends nothing else until the answer arrives.
+ * @param path File to map, laid out as described by SharedMemoryRegion
+ * @param capacity Bytes per direction
+ */
+data class SharedMemoryRequest(
+    val path: String,
+    val capacity: Int
+) : BaseDebugMessage(DebugCommand.SharedMemoryReq)
+
 // ================================================================================================
 // RESPONSE/NOTIFICATION MESSAGES (Debugger -> IDE)
 // ================================================================================================
 
+/**
+ * Response to the init request
+ * @param capabilities Capabilities accepted by the debugger (null for debuggers without negotiation)
+ */
+data class InitResponse(
+    val capabilities: List<String>?
+)
+
+/**
+ * Answer to a [SharedMemoryRequest], the last message the debugger sends on the socket
+ * when [success] is true
+ * @param error Why the file could not be used
+ */
+data class SharedMemoryResponse(
+    val success: Boolean,
+    val error: String? = null
+)
+
 /**
  * Notification that debugger hit a breakpoint
  * @param stacks Call stack at the breakpoint
+ * @param snapshot Id later deltas refer to, 0 if the debugger sends no deltas
  */
 data class BreakpointNotification(
-    val stacks: List<DebugStackFrame>
+    val stacks: List<DebugStackFrame>,
+    val snapshot: Int = 0
+)
+
+/**
+ * Notification that debugger hit a breakpoint, with the stack described relative to
+ * the stack of the previous break
+ * @param snapshot Id of this stack
+ * @param base Id of the stack this one is relative to
+ * @param stacks Every frame of the new stack, top first
+ */
+data class BreakDeltaNotification(
+    val snapshot: Int,
+    val base: Int,
+    val stacks: List<DebugStackFrameDelta>
 )
 
 /**
@@ -240,6 +385,14 @@ data class EvalResponse(
     val value: DebugVariable?
 )
 
+/**
+ * Response to an [EvalBatchRequest]
+ * @param results One response per evaluation, matched by seq
+ */
+data class EvalBatchResponse(
+    val results: List<EvalResponse>
+)
+
 // ================================================================================================
 // DATA STRUCTURES
 // ================================================================================================
@@ -280,6 +433,29 @@ data class DebugStackFrame(
     val upvalueVariables: List<DebugVariable>
 )
 
+/**
+ * A stack frame relative to a frame of the previous stack.
+ *
+ * A frame continues the base frame at [baseLevel] when that frame runs the same function
+ * (same [file] and [functionName]); its variables are then the base frame's, with
+ * variables of the same name replaced by [localVariables]/[upvalueVariables], the rest of
+ * those appended and the names in [removedLocals]/[removedUpvalues] dropped.
+ * Frames with duplicate variable names must be sent in full.
+ *
+ * @param baseLevel Level of the frame in the previous stack, -1 for a frame sent in full
+ */
+data class DebugStackFrameDelta(
+    val file: String,
+    val line: Int,
+    val functionName: String,
+    val level: Int,
+    val baseLevel: Int,
+    val localVariables: List<DebugVariable>,
+    val upvalueVariables: List<DebugVariable>,
+    val removedLocals: List<String> = emptyList(),
+    val removedUpvalues: List<String> = emptyList()
+)
+
 /**
  * Represents a variable/value in the debugger
  * @param name Variable name
@@ -288,7 +464,7 @@ data class DebugStackFrame(
  * @param valueType Lua type of the value
  * @param valueTypeName User-friendly type name
  * @param cacheId Cache ID for lazy loading of children
- * @param children Child variables (for tables/objects)
+ * @param children Child variables (for tables/objects), column-wise when large, see [VariableColumns]
  */
 data class DebugVariable(
     val name: String,
@@ -303,7 +479,7 @@ data class DebugVariable(
      * Get the name type as enum
      */
     val nameTypeValue: LuaValueType
-        get() = LuaValueType.values().getOrNull(nameType) ?: LuaValueType.TSTRING
+        get() = LuaValueType.entries.getOrNull(nameType) ?: LuaValueType.TSTRING
 
     /**
      * Get display name (handles table keys)
@@ -315,7 +491,7 @@ data class DebugVariable(
      * Get the value type as enum
      */
     val valueTypeValue: LuaValueType
-        get() = LuaValueType.values().getOrNull(valueType) ?: LuaValueType.TSTRING
+        get() = LuaValueType.entries.getOrNull(valueType) ?: LuaValueType.TSTRING
 
     /**
      * Check if this is a fake/synthetic variable (like groups)
@@ -338,7 +514,7 @@ data class DebugVariable(
  * Parse incoming message command
  */
 fun parseCommand(cmdValue: Int): DebugCommand {
-    return DebugCommand.values().getOrNull(cmdValue) ?: DebugCommand.Unknown
+    return DebugCommand.entries.getOrNull(cmdValue) ?: DebugCommand.Unknown
 }
 
 /**
@@ -346,7 +522,33 @@ fun parseCommand(cmdValue: Int): DebugCommand {
  */
 inline fun <reified T> parseMessage(json: String): T? {
     return try {
-        Gson().fromJson(json, T::class.java)
+        DebugProtocolCodec.fromJson(json, T::class.java)
+    } catch (e: Exception) {
+        null
+    }
+}
+
+/**
+ * Parse a streamed JSON payload into specific message type
+ */
+inline fun <reified T> parseMessage(reader: Reader): T? {
+    return try {
+        DebugProtocolCodec.fromJson(reader, T::class.java)
+    } catch (e: Exception) {
+        null
+    }
+}
+
+/**
+ * Parse a payload of either [PayloadEncoding] into specific message type
+ */
+inline fun <reified T> parseMessage(payload: ByteArray): T? {
+    return try {
+        if (payload.isNotEmpty() && PayloadEncoding.of(payload[0]) == PayloadEncoding.CBOR) {
+            DebugProtocolCodec.fromCbor(payload, T::class.java)
+        } else {
+            DebugProtocolCodec.fromJson(String(payload, Charsets.UTF_8), T::class.java)
+        }
     } catch (e: Exception) {
         null
     }
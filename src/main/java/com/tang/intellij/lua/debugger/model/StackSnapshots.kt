@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+/**
+ * A decoded stack together with the id deltas refer to
+ * @param id Snapshot id sent by the debugger, 0 if it sends no deltas
+ */
+class StackSnapshot(val id: Int, val frames: List<LazyStackFrame>)
+
+/**
+ * The stack of the last break of one connection, which [BreakDeltaNotification]s apply to.
+ *
+ * Frames a delta leaves untouched come back as the same [LazyStackFrame] instances, so
+ * anything built on top of them can be kept from one break to the next.
+ * Used from the thread handling debugger messages only.
+ */
+class StackSnapshots {
+
+    private var current: StackSnapshot? = null
+
+    /**
+     * Remember a full stack
+     * @return its frames
+     */
+    fun full(snapshot: StackSnapshot): List<LazyStackFrame> {
+        current = snapshot
+        return snapshot.frames
+    }
+
+    /**
+     * Apply [delta] to the remembered stack.
+     * @return the new frames, or null if the delta does not fit the remembered stack, in
+     * which case a full snapshot has to be requested
+     */
+    fun apply(delta: BreakDeltaNotification): List<LazyStackFrame>? {
+        val base = current
+        if (base == null || base.id == 0 || base.id != delta.base) {
+            current = null
+            return null
+        }
+        val frames = ArrayList<LazyStackFrame>(delta.stacks.size)
+        for (frameDelta in delta.stacks) {
+            if (frameDelta.baseLevel < 0) {
+                frames.add(LazyStackFrame.of(frameDelta))
+                continue
+            }
+            val baseFrame = base.frames.getOrNull(frameDelta.baseLevel)
+                ?.takeIf { it.level == frameDelta.baseLevel }
+                ?: base.frames.firstOrNull { it.level == frameDelta.baseLevel }
+            if (baseFrame == null || baseFrame.file != frameDelta.file || baseFrame.functionName != frameDelta.functionName) {
+                current = null
+                return null
+            }
+            frames.add(baseFrame.apply(frameDelta))
+        }
+        current = StackSnapshot(delta.snapshot, frames)
+        return frames
+    }
+
+    /**
+     * Forget the remembered stack, e.g. when the debuggee disconnects
+     */
+    fun reset() {
+        current = null
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.model
+
+/**
+ * Bounded, lock-free pool for the strings that repeat across variable trees and stacks:
+ * type names, file paths, function names, table keys and short values.
+ *
+ * It is a direct-mapped cache, so a colliding string simply replaces the pooled one and
+ * memory stays fixed no matter how many distinct strings pass through. Racing writers are
+ * harmless, a slot always holds some complete String.
+ */
+object StringPool {
+
+    private const val SIZE = 1 shl 14
+    private val slots = arrayOfNulls<String>(SIZE)
+
+    /**
+     * Longest value worth pooling; longer values are rarely repeated
+     */
+    const val MAX_VALUE_LENGTH = 16
+
+    /**
+     * Longest name or path worth pooling
+     */
+    const val MAX_NAME_LENGTH = 256
+
+    fun intern(value: String): String {
+        val hash = value.hashCode()
+        val slot = (hash xor (hash ushr 16)) and (SIZE - 1)
+        val pooled = slots[slot]
+        if (pooled == value) return pooled
+        slots[slot] = value
+        return value
+    }
+
+    /**
+     * Pool [value] unless it is longer than [maxLength]
+     */
+    fun intern(value: String, maxLength: Int): String {
+        return if (value.length <= maxLength) intern(value) else value
+    }
+}
+
+/**
+ * Column-wise storage of a large child list: one array per field instead of one object
+ * per child. Children are materialized on access and equal the decoded ones, so the list
+ * behaves like any other `List<DebugVariable>`.
+ *
+ * A 100k-entry table keeps six arrays rather than 100k objects plus their list slots.
+ */
+class VariableColumns private constructor(
+    private val names: Array<String>,
+    private val values: Array<String>,
+    private val typeNames: Array<String>,
+    // nameType in the high byte, valueType in the low byte
+    private val types: ShortArray,
+    private val cacheIds: IntArray,
+    // Null when no child has children of its own
+    private val children: Array<List<DebugVariable>?>?
+) : AbstractList<DebugVariable>(), RandomAccess {
+
+    override val size: Int
+        get() = names.size
+
+    override fun get(index: Int): DebugVariable {
+        val type = types[index].toInt()
+        return DebugVariable(
+            names[index], (type shr 8) and 0xff, values[index], type and 0xff,
+            typeNames[index], cacheIds[index], children?.get(index)
+        )
+    }
+
+    companion object {
+        /**
+         * Lists shorter than this are kept as they are
+         */
+        const val THRESHOLD = 64
+
+        /**
+         * Compact [list] if it is large enough and its types fit the columns
+         */
+        fun of(list: List<DebugVariable>): List<DebugVariable> {
+            if (list.size < THRESHOLD) return list
+            if (list.any { it.nameType !in 0..0xff || it.valueType !in 0..0xff }) return list
+
+            val size = list.size
+            val types = ShortArray(size)
+            val cacheIds = IntArray(size)
+            var children: Array<List<DebugVariable>?>? = null
+            list.forEachIndexed { i, variable ->
+                types[i] = ((variable.nameType shl 8) or variable.valueType).toShort()
+                cacheIds[i] = variable.cacheId
+                if (variable.children != null) {
+                    if (children == null) children = arrayOfNulls(size)
+                    children!![i] = variable.children
+                }
+            }
+            return VariableColumns(
+                Array(size) { list[it].name },
+                Array(size) { list[it].value },
+                Array(size) { list[it].valueTypeName },
+                types, cacheIds, children
+            )
+        }
+    }
+}
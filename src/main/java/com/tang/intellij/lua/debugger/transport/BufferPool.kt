@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pool of fixed-size direct buffers used for socket I/O
+ * @param chunkSize Capacity of every buffer
+ * @param maxRetained Maximum number of idle buffers kept for reuse
+ */
+class BufferPool(val chunkSize: Int, private val maxRetained: Int) {
+
+    private val free = ConcurrentLinkedQueue<ByteBuffer>()
+    private val retained = AtomicInteger()
+
+    /**
+     * Take a cleared buffer from the pool
+     */
+    fun acquire(): ByteBuffer {
+        val buffer = free.poll() ?: return ByteBuffer.allocateDirect(chunkSize)
+        retained.decrementAndGet()
+        return buffer.clear()
+    }
+
+    /**
+     * Return a buffer; it must not be used by the caller afterwards
+     */
+    fun release(buffer: ByteBuffer) {
+        if (retained.incrementAndGet() <= maxRetained) {
+            free.add(buffer)
+        } else {
+            retained.decrementAndGet()
+        }
+    }
+
+    companion object {
+        /**
+         * Pool shared by all transports: 64 KB chunks, at most 4 MB kept idle
+         */
+        val shared = BufferPool(64 * 1024, 64)
+    }
+}
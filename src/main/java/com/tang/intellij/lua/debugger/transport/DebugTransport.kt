@@ -16,21 +16,35 @@
 
 package com.tang.intellij.lua.debugger.transport
 
-import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import com.tang.intellij.lua.debugger.model.DebugCapabilities
 import com.tang.intellij.lua.debugger.model.DebugCommand
 import com.tang.intellij.lua.debugger.model.DebugMessage
+import com.tang.intellij.lua.debugger.model.EvalBatchRequest
+import com.tang.intellij.lua.debugger.model.EvalRequest
+import com.tang.intellij.lua.debugger.model.InitResponse
+import com.tang.intellij.lua.debugger.model.PayloadEncoding
+import com.tang.intellij.lua.debugger.model.SharedMemoryRequest
+import com.tang.intellij.lua.debugger.model.SharedMemoryResponse
 import com.tang.intellij.lua.debugger.model.parseCommand
-import java.io.BufferedReader
+import java.io.File
 import java.io.IOException
-import java.io.InputStreamReader
 import java.net.InetAddress
 import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.net.SocketAddress
+import java.net.StandardSocketOptions
+import java.net.UnixDomainSocketAddress
 import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import java.nio.channels.SelectionKey
 import java.nio.channels.ServerSocketChannel
 import java.nio.channels.SocketChannel
-import java.util.concurrent.LinkedBlockingQueue
+import java.text.SimpleDateFormat
+import java.util.Date
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.LockSupport
 
 /**
  * Transport connection mode
@@ -61,9 +75,16 @@ interface TransportHandler {
     /**
      * Called when a message is received
      * @param command The command type
-     * @param json The JSON payload
+     * @param payload The JSON payload, only valid until this call returns
      */
-    fun onMessage(command: DebugCommand, json: String)
+    fun onMessage(command: DebugCommand, payload: MessagePayload)
+
+    /**
+     * Called when a queued message is discarded without being sent,
+     * e.g. an evaluation made obsolete by resuming
+     */
+    fun onMessageDropped(message: DebugMessage) {
+    }
 
     /**
      * Called when an error occurs
@@ -87,14 +108,25 @@ abstract class DebugTransport(
     protected val host: String,
     protected val port: Int
 ) {
-    private val logger = Logger.getInstance(javaClass)
+    protected val logger: Logger = Logger.getInstance(javaClass)
 
     var handler: TransportHandler? = null
 
-    protected val messageQueue = LinkedBlockingQueue<DebugMessage>()
+    /**
+     * Traffic counters of this transport
+     */
+    val metrics = TransportMetrics { messageQueue.size }
+
+    protected val messageQueue = OutboundQueue()
     protected val isRunning = AtomicBoolean(false)
     protected val isStopped = AtomicBoolean(false)
 
+    /**
+     * Address of the debugger as shown in logs
+     */
+    protected open val endpoint: String
+        get() = "$host:$port"
+
     /**
      * Start the transport connection
      */
@@ -110,9 +142,6 @@ abstract class DebugTransport(
 
         isRunning.set(false)
 
-        // Add stop signal to queue
-        messageQueue.put(StopSignal)
-
         log("Transport stopped")
     }
 
@@ -126,93 +155,435 @@ abstract class DebugTransport(
             return
         }
 
-        messageQueue.put(message)
+        val dropped = messageQueue.offer(message)
+        metrics.recordQueueDepth(messageQueue.size)
+        if (dropped.isNotEmpty()) {
+            notifyDropped(dropped)
+        }
+        if (dropped.size != 1 || dropped[0] !== message) {
+            onMessageQueued()
+        }
     }
 
+    /**
+     * Send control messages in one batch, written together without waiting for answers
+     * in between
+     */
+    fun sendAll(messages: List<DebugMessage>) {
+        if (isStopped.get()) {
+            log("Cannot send messages, transport is stopped")
+            return
+        }
+
+        messageQueue.offerAll(messages)
+        metrics.recordQueueDepth(messageQueue.size)
+        onMessageQueued()
+    }
+
+    /**
+     * Bound of queued evaluations before [send] applies backpressure
+     */
+    var outboundCapacity: Int
+        get() = messageQueue.capacity
+        set(value) {
+            messageQueue.capacity = value
+        }
+
     /**
      * Check if transport is connected
      */
     abstract fun isConnected(): Boolean
 
+    /**
+     * Protocol capabilities this transport can offer in the InitReq
+     */
+    open val capabilities: Array<String>
+        get() = emptyArray()
+
+    /**
+     * Called with the capabilities accepted by the debugger in its InitRsp
+     */
+    protected open fun onNegotiated(accepted: Set<String>) {
+    }
+
+    /**
+     * Called with the debugger's answer to a [SharedMemoryRequest], which is not passed
+     * on to the handler
+     */
+    protected open fun onSharedMemoryResponse(response: SharedMemoryResponse?) {
+    }
+
+    /**
+     * Called after a message has been added to [messageQueue]
+     */
+    protected open fun onMessageQueued() {
+    }
+
+    /**
+     * Run a handler callback; callbacks are delivered in order
+     */
+    protected open fun dispatch(task: () -> Unit) {
+        task()
+    }
+
     // Protected helper methods
 
     protected fun notifyConnected(success: Boolean) {
         if (success) {
-            log("Connected to $host:$port")
+            metrics.recordConnected()
+            log("Connected to $endpoint")
         } else {
-            log("Failed to connect to $host:$port")
+            log("Failed to connect to $endpoint")
         }
-        handler?.onConnect(success)
+        dispatch { handler?.onConnect(success) }
     }
 
     protected fun notifyDisconnected() {
-        log("Disconnected from $host:$port")
-        handler?.onDisconnect()
+        log("Disconnected from $endpoint")
+        dispatch { handler?.onDisconnect() }
     }
 
-    protected fun notifyMessage(command: DebugCommand, json: String) {
-        try {
-            handler?.onMessage(command, json)
-        } catch (e: Exception) {
-            error("Error handling message: ${e.message}", e)
+    protected fun notifyDropped(messages: List<DebugMessage>) {
+        if (messages.isEmpty()) return
+        metrics.messagesDropped.addAndGet(messages.size.toLong())
+        dispatch { messages.forEach { handler?.onMessageDropped(it) } }
+    }
+
+    /**
+     * Decode a received frame and pass it to the handler
+     */
+    protected fun dispatchFrame(cmdValue: Int, payload: ByteBuffer) {
+        val start = System.nanoTime()
+        val command = parseCommand(cmdValue)
+        val size = payload.remaining()
+        val message = MessagePayload.copyOf(payload)
+        if (command == DebugCommand.InitRsp) {
+            val response = message.parse<InitResponse>()
+            onNegotiated(response?.capabilities?.toSet() ?: emptySet())
+        }
+        if (command == DebugCommand.SharedMemoryRsp) {
+            onSharedMemoryResponse(message.parse<SharedMemoryResponse>())
+            message.release()
+            metrics.recordReceived(cmdValue, size, System.nanoTime() - start)
+            return
+        }
+        metrics.recordReceived(cmdValue, size, System.nanoTime() - start)
+        notifyMessage(command, message)
+    }
+
+    /**
+     * Pass a message to the handler; the payload is released afterwards
+     */
+    protected fun notifyMessage(command: DebugCommand, payload: MessagePayload) {
+        val queued = System.nanoTime()
+        dispatch {
+            val start = System.nanoTime()
+            try {
+                handler?.onMessage(command, payload)
+            } catch (e: Exception) {
+                error("Error handling message: ${e.message}", e)
+            } finally {
+                payload.release()
+                metrics.recordHandled(command, System.nanoTime() - start, start - queued)
+            }
         }
     }
 
     protected fun error(message: String, exception: Throwable? = null) {
         logger.error(message, exception)
-        handler?.onError(message, exception)
+        dispatch { handler?.onError(message, exception) }
     }
 
     protected fun log(message: String) {
         logger.info(message)
-        handler?.onLog(message)
+        dispatch { handler?.onLog(message) }
     }
 }
 
 /**
- * Sentinel object to signal transport shutdown
- */
-private object StopSignal : DebugMessage {
-    override val cmd = -1
-    override fun toJSON() = ""
-}
-
-/**
- * Socket-based transport using NIO channels
+ * Socket-based transport using non-blocking NIO channels.
+ *
+ * All channel I/O runs on the shared [TransportReactor] thread, handler callbacks
+ * run in order on a connection executor from [executor].
+ *
+ * With a debugger on the same host that accepts [DebugCapabilities.SHARED_MEMORY],
+ * messages move to a [SharedMemoryRegion] served by a thread of its own, and the socket
+ * is only watched for the debugger going away.
  */
 abstract class SocketChannelTransport(
     host: String,
-    port: Int
+    port: Int,
+    protected val executor: TransportExecutor,
+    protected val reactor: TransportReactor = TransportReactor.shared
 ) : DebugTransport(host, port) {
 
+    // Current connection, only modified on the reactor thread
+    @Volatile
     protected var socket: SocketChannel? = null
+    private var socketKey: SelectionKey? = null
+    private var decoder = FrameDecoder()
+    private val output = FrameOutput()
+    private val flushScheduled = AtomicBoolean(false)
+
+    private val dispatcher = executor.newConnectionExecutor()
+    private val frameConsumer = FrameConsumer { cmdValue, payload ->
+        capture?.record(CaptureDirection.INBOUND, cmdValue, payload)
+        dispatchFrame(cmdValue, payload)
+    }
 
     /**
-     * Start receive and send threads
+     * Records every frame of this transport when set, closed when the transport stops
      */
-    protected fun startIO() {
+    @Volatile
+    var capture: TrafficRecorder? = null
+
+    private val connectionListener = object : ChannelListener {
+        override fun onReady(key: SelectionKey) {
+            if (key.isReadable) {
+                read()
+            }
+            if (key.isValid && key.isWritable) {
+                flush()
+            }
+        }
+
+        override fun onFailure(exception: Exception) {
+            error("Error in connection: ${exception.message}", exception)
+            closeConnection()
+        }
+    }
+
+    /**
+     * Framing of outgoing messages, switched to BINARY once the debugger accepts it
+     */
+    @Volatile
+    protected var outboundFormat = FrameFormat.LINE
+
+    /**
+     * Encoding of outgoing payloads, switched to CBOR once the debugger accepts it
+     */
+    @Volatile
+    protected var outboundEncoding = PayloadEncoding.JSON
+
+    /**
+     * Payloads of at least this many bytes are deflated once the debugger accepts
+     * [DebugCapabilities.DEFLATE]; a negative value disables compression.
+     * Small frames are never compressed so stepping latency is unaffected.
+     */
+    var compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD
+
+    /**
+     * Offer [DebugCapabilities.CBOR] payloads; JSON stays the fallback either way
+     */
+    var offerCbor = true
+
+    /**
+     * Offer [DebugCapabilities.SHARED_MEMORY] to debuggers on this host; the socket stays
+     * in use for any other debugger, or when setting up the shared memory fails
+     */
+    var offerSharedMemory = false
+
+    /**
+     * Offer [DebugCapabilities.EVAL_BATCH]; evaluations travel one per message otherwise
+     */
+    var offerEvalBatch = true
+
+    // Whether the debugger accepted EVAL_BATCH, evaluations queued together then leave as one message
+    @Volatile
+    private var batchEvals = false
+
+    /**
+     * Bytes per direction of the shared memory, a power of two
+     */
+    var sharedMemoryCapacity = SharedMemoryRegion.DEFAULT_RING_CAPACITY
+
+    // Shared memory offered and not answered yet, nothing else is sent meanwhile. Reactor thread only
+    private var pendingRegion: SharedMemoryRegion? = null
+
+    // Shared memory in use, from the debugger's answer until the connection closes
+    @Volatile
+    private var ringLink: RingLink? = null
+
+    override val capabilities: Array<String>
+        get() {
+            val offered = mutableListOf(DebugCapabilities.BINARY_FRAMING)
+            if (compressionThreshold >= 0) offered.add(DebugCapabilities.DEFLATE)
+            if (offerCbor) offered.add(DebugCapabilities.CBOR)
+            if (offerSharedMemory && isLocalPeer()) offered.add(DebugCapabilities.SHARED_MEMORY)
+            if (offerEvalBatch) offered.add(DebugCapabilities.EVAL_BATCH)
+            return offered.toTypedArray()
+        }
+
+    /**
+     * Whether the connected debugger runs on this host
+     */
+    private fun isLocalPeer(): Boolean {
+        return try {
+            when (val address = socket?.remoteAddress) {
+                is UnixDomainSocketAddress -> true
+                is InetSocketAddress -> address.address?.let {
+                    it.isLoopbackAddress || NetworkInterface.getByInetAddress(it) != null
+                } == true
+                else -> false
+            }
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    override fun onNegotiated(accepted: Set<String>) {
+        if (DebugCapabilities.EVAL_BATCH in accepted && offerEvalBatch) {
+            batchEvals = true
+            log("Batching evaluations")
+        }
+        if (DebugCapabilities.BINARY_FRAMING in accepted) {
+            outboundFormat = FrameFormat.BINARY
+            log("Using binary framing")
+
+            if (DebugCapabilities.DEFLATE in accepted && compressionThreshold >= 0) {
+                output.compressionThreshold = compressionThreshold
+                log("Compressing frames of $compressionThreshold bytes and more")
+            }
+            if (DebugCapabilities.CBOR in accepted && offerCbor) {
+                outboundEncoding = PayloadEncoding.CBOR
+                log("Using CBOR payloads")
+            }
+            if (DebugCapabilities.SHARED_MEMORY in accepted && offerSharedMemory) {
+                requestSharedMemory()
+            }
+        }
+    }
+
+    /**
+     * Offer the debugger a new shared memory file. Runs on the reactor thread, as part of
+     * reading the InitRsp.
+     */
+    private fun requestSharedMemory() {
+        val region = try {
+            val file = File.createTempFile("emmy-", ".shm")
+            file.deleteOnExit()
+            SharedMemoryRegion.create(file, sharedMemoryCapacity)
+        } catch (e: Exception) {
+            log("Shared memory unavailable, staying on the socket: ${e.message}")
+            return
+        }
+        pendingRegion = region
+        val request = SharedMemoryRequest(region.file.path, region.ringCapacity)
+        val start = System.nanoTime()
+        val bytes = output.writeMessage(outboundFormat, request, outboundEncoding)
+        metrics.recordSent(request, bytes, System.nanoTime() - start)
+        flush()
+    }
+
+    override fun onSharedMemoryResponse(response: SharedMemoryResponse?) {
+        val region = pendingRegion ?: return
+        pendingRegion = null
+        if (response?.success == true) {
+            ringLink = RingLink(region, outboundFormat, outboundEncoding).also { it.start() }
+            log("Using shared memory ${region.file}")
+        } else {
+            release(region)
+            log("Debugger declined shared memory: ${response?.error ?: "no reason given"}")
+        }
+        // Send what waited for the answer
+        flush()
+    }
+
+    private fun release(region: SharedMemoryRegion) {
+        region.close()
+        if (!region.file.delete()) {
+            logger.info("Failed to delete ${region.file}")
+        }
+    }
+
+    override fun dispatch(task: () -> Unit) {
+        dispatcher.execute(task)
+    }
+
+    override fun onMessageQueued() {
+        ringLink?.let {
+            it.wake()
+            return
+        }
+        // Coalesce bursts of sends into a single flush
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.execute {
+                flushScheduled.set(false)
+                flush()
+            }
+        }
+    }
+
+    /**
+     * Attach a connected channel and start exchanging messages.
+     * Must be called on the reactor thread.
+     */
+    protected fun startIO(channel: SocketChannel) {
+        socket = channel
+        decoder = FrameDecoder()
+        output.clear()
+        output.compressionThreshold = -1
+        outboundFormat = FrameFormat.LINE
+        outboundEncoding = PayloadEncoding.JSON
+        batchEvals = false
         isRunning.set(true)
 
-        // Start receiver thread
-        ApplicationManager.getApplication().executeOnPooledThread {
-            receiveLoop()
+        // Writes are already coalesced, don't let Nagle delay them further
+        if (StandardSocketOptions.TCP_NODELAY in channel.supportedOptions()) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true)
+        }
+
+        socketKey = reactor.register(channel, SelectionKey.OP_READ, connectionListener)
+        notifyConnected(true)
+        flush()
+    }
+
+    /**
+     * Close the current connection. Must be called on the reactor thread.
+     */
+    protected fun closeConnection() {
+        val channel = socket ?: return
+        socket = null
+        socketKey?.cancel()
+        socketKey = null
+        ringLink?.let {
+            ringLink = null
+            it.stop()
+        }
+        pendingRegion?.let {
+            pendingRegion = null
+            release(it)
         }
+        output.clear()
 
-        // Start sender thread
-        ApplicationManager.getApplication().executeOnPooledThread {
-            sendLoop()
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            // Ignore
         }
+
+        isRunning.set(false)
+        metrics.clearPending()
+        logger.info("Sent ${metrics.messagesWritten.get()} messages in ${metrics.writeCalls.get()} writes; " +
+                "${executor.name}: ${executor.stats}")
+        notifyDisconnected()
+        onConnectionClosed()
+    }
+
+    /**
+     * Called on the reactor thread after the connection has been closed
+     */
+    protected open fun onConnectionClosed() {
     }
 
     override fun stop() {
         super.stop()
 
-        try {
-            socket?.close()
-        } catch (e: Exception) {
-            error("Error closing socket", e)
-        } finally {
-            socket = null
+        reactor.execute {
+            // Best effort: push out whatever is queued (e.g. the Stop action) before closing
+            flush()
+            closeConnection()
+            capture?.close()
         }
     }
 
@@ -223,202 +594,323 @@ abstract class SocketChannelTransport(
     /**
      * Receive messages from debugger
      */
-    private fun receiveLoop() {
-        val inputStream = try {
-            socket?.socket()?.getInputStream()
-        } catch (e: Exception) {
-            error("Failed to get input stream", e)
-            isRunning.set(false)
-            return
+    private fun read() {
+        val channel = socket ?: return
+        try {
+            if (decoder.readFrom(channel) < 0) {
+                closeConnection()
+                return
+            }
+            decoder.drain(frameConsumer)
+        } catch (e: IOException) {
+            if (isRunning.get()) {
+                error("IO error while receiving", e)
+            }
+            closeConnection()
         }
+    }
 
-        if (inputStream == null) {
-            error("Input stream is null")
-            isRunning.set(false)
+    /**
+     * Send queued messages to debugger.
+     * Everything queued so far is encoded first and written with gathering writes.
+     * While the socket is backed up, messages stay in [messageQueue] where they can
+     * still be reordered or dropped.
+     */
+    private fun flush() {
+        ringLink?.let {
+            it.wake()
             return
         }
-
+        val channel = socket ?: return
         try {
-            val reader = BufferedReader(InputStreamReader(inputStream, Charsets.UTF_8))
+            writeQueued(channel)
 
-            while (isRunning.get() && !isStopped.get()) {
-                try {
-                    // Read command line
-                    val cmdLine = reader.readLine() ?: break
-                    val cmdValue = cmdLine.toIntOrNull() ?: continue
-
-                    // Read JSON line
-                    val json = reader.readLine() ?: break
+            val ops = if (output.isEmpty) SelectionKey.OP_READ
+                      else SelectionKey.OP_READ or SelectionKey.OP_WRITE
+            socketKey?.takeIf { it.isValid }?.interestOps(ops)
+        } catch (e: IOException) {
+            if (isRunning.get()) {
+                error("IO error while sending", e)
+            }
+            closeConnection()
+        }
+    }
 
-                    // Parse and notify
-                    val command = parseCommand(cmdValue)
-                    notifyMessage(command, json)
+    /**
+     * Send [message] together with the evaluations queued behind it, when the debugger
+     * accepts batches and there are any
+     */
+    private fun batch(message: DebugMessage): DebugMessage {
+        if (message !is EvalRequest || !batchEvals) return message
+        val evals = mutableListOf(message)
+        while (evals.size < MAX_EVAL_BATCH) {
+            evals.add(messageQueue.pollEval() ?: break)
+        }
+        return if (evals.size == 1) message else EvalBatchRequest(evals)
+    }
 
-                } catch (e: IOException) {
-                    if (isRunning.get()) {
-                        error("IO error while receiving", e)
-                    }
-                    break
+    /**
+     * Write pending output, then encode and write queued messages unless a shared memory
+     * answer is awaited
+     * @return whether any write was issued
+     */
+    private fun writeQueued(
+        channel: GatheringByteChannel,
+        output: FrameOutput = this.output,
+        format: FrameFormat = outboundFormat,
+        encoding: PayloadEncoding = outboundEncoding
+    ): Boolean {
+        var messages = 0
+        var calls = 0
+        if (!output.isEmpty) {
+            calls += output.flushTo(channel)
+        }
+        if (output.isEmpty && pendingRegion == null) {
+            while (true) {
+                val message = messageQueue.poll()?.let(::batch) ?: break
+                try {
+                    val start = System.nanoTime()
+                    val recorder = capture
+                    val bytes = output.writeMessage(format, message, encoding, recorder?.let {
+                        { payload -> it.record(CaptureDirection.OUTBOUND, message.cmd, payload) }
+                    })
+                    metrics.recordSent(message, bytes, System.nanoTime() - start)
+                    messages++
+                } catch (e: Exception) {
+                    error("Error encoding message", e)
                 }
             }
-        } catch (e: Exception) {
-            error("Error in receive loop", e)
-        } finally {
-            // Set isRunning to false BEFORE notifying disconnect
-            // This allows ServerTransport's accept loop to detect disconnection
-            // and wait for new connections
-            isRunning.set(false)
-            notifyDisconnected()
-            // Signal send thread to stop
-            messageQueue.put(StopSignal)
+            if (!output.isEmpty) {
+                calls += output.flushTo(channel)
+            }
         }
+        if (calls > 0) {
+            metrics.recordWrites(messages, calls)
+        }
+        return calls > 0
     }
 
     /**
-     * Send messages to debugger
+     * Thread exchanging frames through shared memory with buffers of its own. It polls
+     * the queue while it runs; the reactor only watches the socket. The thread unmaps
+     * the region itself once it is done with it.
      */
-    private fun sendLoop() {
-        try {
-            while (true) {
-                val message = messageQueue.take()
+    private inner class RingLink(
+        private val region: SharedMemoryRegion,
+        private val format: FrameFormat,
+        private val encoding: PayloadEncoding
+    ) : Runnable {
+        private val decoder = FrameDecoder()
+        // Frames are small copies in memory, compressing them would only cost time
+        private val output = FrameOutput()
+        private val idle = RingIdleStrategy()
+        private val writePending = AtomicBoolean(true)
+        private val thread = Thread(this, "Emmy Shared Memory $endpoint").apply { isDaemon = true }
 
-                // Check for stop signal
-                if (message === StopSignal || isStopped.get()) {
-                    break
-                }
+        @Volatile
+        private var running = true
 
-                try {
-                    val json = message.toJSON()
-                    val data = "${message.cmd}\n$json\n"
+        fun start() {
+            thread.start()
+        }
+
+        /**
+         * Have queued messages written, from any thread
+         */
+        fun wake() {
+            writePending.set(true)
+            LockSupport.unpark(thread)
+        }
 
-                    socket?.write(ByteBuffer.wrap(data.toByteArray(Charsets.UTF_8)))
-                        ?: break
+        /**
+         * Stop after writing what is queued, e.g. the Stop action of an ending session.
+         * Does not wait, the reactor thread serves other sessions too.
+         */
+        fun stop() {
+            running = false
+            LockSupport.unpark(thread)
+        }
 
-                } catch (e: IOException) {
-                    if (isRunning.get()) {
-                        error("IO error while sending", e)
+        override fun run() {
+            val channel = region.channel
+            try {
+                while (running) {
+                    var busy = false
+                    if (decoder.readFrom(channel) > 0) {
+                        decoder.drain(frameConsumer)
+                        busy = true
                     }
-                    break
+                    if (writePending.getAndSet(false) || !output.isEmpty) {
+                        busy = writeQueued(channel, output, format, encoding) or busy
+                    }
+                    if (busy) idle.reset() else idle.idle()
                 }
+                writeQueued(channel, output, format, encoding)
+            } catch (e: Exception) {
+                if (running) {
+                    error("Shared memory failed: ${e.message}", e)
+                    reactor.execute { if (ringLink === this) closeConnection() }
+                }
+            } finally {
+                output.clear()
+                release(region)
             }
-        } catch (e: Exception) {
-            error("Error in send loop", e)
         }
     }
+
+    companion object {
+        const val DEFAULT_COMPRESSION_THRESHOLD = 64 * 1024
+
+        /**
+         * Most evaluations sent in one [EvalBatchRequest]
+         */
+        const val MAX_EVAL_BATCH = 64
+    }
 }
 
 /**
  * Client transport - IDE connects to debugger
  * Use this when the debugger is already running and waiting for IDE connection
  */
-class ClientTransport(
+open class ClientTransport(
     host: String,
-    port: Int
-) : SocketChannelTransport(host, port) {
+    port: Int,
+    executor: TransportExecutor = TransportExecutor.default
+) : SocketChannelTransport(host, port, executor) {
 
     override fun start() {
-        log("Connecting to $host:$port...")
+        log("Connecting to $endpoint...")
 
-        ApplicationManager.getApplication().executeOnPooledThread {
+        // Name resolution may block, keep it off the reactor thread
+        dispatch {
             try {
-                val channel = SocketChannel.open()
-                val address = InetAddress.getByName(host)
-
-                if (channel.connect(InetSocketAddress(address, port))) {
-                    socket = channel
-                    startIO()
-                    notifyConnected(true)
-                } else {
-                    error("Failed to connect")
-                    notifyConnected(false)
-                }
+                val address = resolveAddress()
+                reactor.execute { connect(address) }
             } catch (e: Exception) {
                 error("Connection failed: ${e.message}", e)
                 notifyConnected(false)
             }
         }
     }
+
+    /**
+     * Resolve the debugger address, called off the reactor thread
+     */
+    protected open fun resolveAddress(): SocketAddress {
+        return InetSocketAddress(InetAddress.getByName(host), port)
+    }
+
+    /**
+     * Open an unconnected channel for [resolveAddress]
+     */
+    protected open fun openChannel(): SocketChannel {
+        return SocketChannel.open()
+    }
+
+    private fun connect(address: SocketAddress) {
+        if (isStopped.get()) return
+
+        val channel = openChannel()
+        try {
+            channel.configureBlocking(false)
+            if (channel.connect(address)) {
+                startIO(channel)
+                return
+            }
+            reactor.register(channel, SelectionKey.OP_CONNECT, object : ChannelListener {
+                override fun onReady(key: SelectionKey) {
+                    if (channel.finishConnect()) {
+                        key.cancel()
+                        // A cancelled key is only released by the next select
+                        reactor.post { if (!isStopped.get()) startIO(channel) else channel.close() }
+                    }
+                }
+
+                override fun onFailure(exception: Exception) {
+                    connectFailed(channel, exception)
+                }
+            })
+        } catch (e: Exception) {
+            connectFailed(channel, e)
+        }
+    }
+
+    private fun connectFailed(channel: SocketChannel, exception: Exception) {
+        try {
+            channel.close()
+        } catch (e: IOException) {
+            // Ignore
+        }
+        error("Connection failed: ${exception.message}", exception)
+        notifyConnected(false)
+    }
 }
 
 /**
  * Server transport - IDE waits for debugger to connect
  * Use this when you want the debugger to initiate the connection
  * Supports reconnection - after client disconnects, will wait for new connection
+ *
+ * With [additionalConnections] set, debuggers connecting while one is served are not
+ * kept waiting but handed out as [AcceptedTransport]s of their own.
  */
-class ServerTransport(
+open class ServerTransport(
     host: String,
-    port: Int
-) : SocketChannelTransport(host, port) {
+    port: Int,
+    executor: TransportExecutor = TransportExecutor.default
+) : SocketChannelTransport(host, port, executor) {
 
     private var serverSocket: ServerSocketChannel? = null
-    private val connectionLock = Object()
-    
+    private var acceptKey: SelectionKey? = null
+
+    // Handed out connections still open, only modified on the reactor thread
+    private val accepted = mutableListOf<AcceptedTransport>()
+    private var acceptedCount = 0
+
+    /**
+     * Receives every debugger connecting while this transport already serves one, and
+     * owns it from then on: it sets a handler and starts it. When null, one debugger is
+     * served at a time and further ones wait in the backlog.
+     */
+    @Volatile
+    var additionalConnections: ((AcceptedTransport) -> Unit)? = null
+
+    private val acceptListener = object : ChannelListener {
+        override fun onReady(key: SelectionKey) {
+            val channel = serverSocket?.accept() ?: return
+
+            if (socket != null) {
+                handOff(channel)
+                return
+            }
+            if (additionalConnections == null) {
+                // Serve one debugger at a time; pending connections wait in the backlog
+                key.interestOps(0)
+            }
+            notifyDropped(messageQueue.clear())
+            startIO(channel)
+        }
+
+        override fun onFailure(exception: Exception) {
+            if (!isStopped.get()) {
+                error("Error accepting connection", exception)
+            }
+        }
+    }
+
     override fun start() {
-        ApplicationManager.getApplication().executeOnPooledThread {
+        dispatch {
             try {
-                val server = ServerSocketChannel.open()
-                server.bind(InetSocketAddress(InetAddress.getByName(host), port))
-                serverSocket = server
-
-                log("Server listening on $host:$port, waiting for connection...")
-
-                while (!isStopped.get()) {
-                    try {
-                        // Wait for connection
-                        val channel = server.accept()
-
-                        // Close any existing connection
-                        synchronized(connectionLock) {
-                            if (socket != null) {
-                                try {
-                                    socket?.close()
-                                } catch (e: Exception) {
-                                    // Ignore
-                                }
-                                socket = null
-                            }
-                        }
-                        
-                        // Setup new connection
-                        synchronized(connectionLock) {
-                            socket = channel
-                            // Reset running state for new connection
-                            isRunning.set(false)
-                            messageQueue.clear()
-                        }
-                        
-                        startIO()
-                        notifyConnected(true)
-                        
-                        // Wait for this connection to close before accepting new one
-                        // This is done by waiting for isRunning to become false
-                        while (isRunning.get() && !isStopped.get()) {
-                            Thread.sleep(100)
-                        }
-                        
-                        // Connection ended, clean up socket
-                        synchronized(connectionLock) {
-                            try {
-                                socket?.close()
-                            } catch (e: Exception) {
-                                // Ignore
-                            }
-                            socket = null
-                        }
-                        
-                        if (!isStopped.get()) {
-                            log("Client disconnected, waiting for new connection...")
-                        }
-
-                    } catch (e: IOException) {
-                        if (!isStopped.get()) {
-                            error("Error accepting connection", e)
-                        }
-                        break
-                    } catch (e: InterruptedException) {
-                        // Thread interrupted, exit
-                        break
+                val server = openServer()
+                reactor.execute {
+                    if (isStopped.get()) {
+                        // stop() came first and found nothing to close
+                        closeServer(server)
+                        return@execute
                     }
+                    serverSocket = server
+                    acceptKey = reactor.register(server, SelectionKey.OP_ACCEPT, acceptListener)
+                    log("Server listening on $endpoint, waiting for connection...")
                 }
             } catch (e: Exception) {
                 error("Server failed: ${e.message}", e)
@@ -427,15 +919,115 @@ class ServerTransport(
         }
     }
 
+    /**
+     * Pass a further debugger to [additionalConnections], on the reactor thread
+     */
+    private fun handOff(channel: SocketChannel) {
+        val receiver = additionalConnections
+        if (receiver == null) {
+            channel.close()
+            return
+        }
+        acceptedCount++
+        val peer = (channel.remoteAddress as? InetSocketAddress)?.let { "${it.hostString}:${it.port}" }
+            ?: "$endpoint #$acceptedCount"
+        val connection = AcceptedTransport(channel, peer, host, port, executor, reactor)
+        connection.compressionThreshold = compressionThreshold
+        connection.offerCbor = offerCbor
+        connection.offerEvalBatch = offerEvalBatch
+        connection.offerSharedMemory = offerSharedMemory
+        connection.sharedMemoryCapacity = sharedMemoryCapacity
+        connection.outboundCapacity = outboundCapacity
+        connection.onClosed = { accepted.remove(connection) }
+        accepted.add(connection)
+
+        log("Debugger connected from $peer")
+        dispatch { receiver(connection) }
+    }
+
+    /**
+     * Open the listening channel, called off the reactor thread
+     */
+    protected open fun openServer(): ServerSocketChannel {
+        val server = ServerSocketChannel.open()
+        server.bind(InetSocketAddress(InetAddress.getByName(host), port))
+        return server
+    }
+
+    /**
+     * Close the listening channel, on the reactor thread
+     */
+    protected open fun closeServer(server: ServerSocketChannel) {
+        server.close()
+    }
+
+    override fun onConnectionClosed() {
+        if (!isStopped.get()) {
+            log("Client disconnected, waiting for new connection...")
+            acceptKey?.takeIf { it.isValid }?.interestOps(SelectionKey.OP_ACCEPT)
+        }
+    }
+
     override fun stop() {
         super.stop()
 
-        try {
-            serverSocket?.close()
-        } catch (e: Exception) {
-            error("Error closing server socket", e)
-        } finally {
-            serverSocket = null
+        reactor.execute {
+            try {
+                acceptKey?.cancel()
+                serverSocket?.let(::closeServer)
+            } catch (e: Exception) {
+                error("Error closing server socket", e)
+            } finally {
+                acceptKey = null
+                serverSocket = null
+            }
+            accepted.toList().forEach { it.stop() }
+            accepted.clear()
+        }
+    }
+}
+
+/**
+ * One further debugger connected to a [ServerTransport] serving several at once.
+ *
+ * It lives as long as its connection: it stops when the debugger disconnects, and a
+ * debugger connecting again is handed out as a new transport.
+ */
+class AcceptedTransport internal constructor(
+    private val channel: SocketChannel,
+    /**
+     * Address of the debugger, for naming what serves it
+     */
+    val peer: String,
+    host: String,
+    port: Int,
+    executor: TransportExecutor,
+    reactor: TransportReactor
+) : SocketChannelTransport(host, port, executor, reactor) {
+
+    // Called on the reactor thread once the connection is gone
+    internal var onClosed: (() -> Unit)? = null
+
+    override val endpoint: String
+        get() = peer
+
+    override fun start() {
+        reactor.execute {
+            if (isStopped.get()) channel.close() else startIO(channel)
+        }
+    }
+
+    override fun onConnectionClosed() {
+        stop()
+        onClosed?.invoke()
+    }
+
+    override fun stop() {
+        super.stop()
+
+        // Stopped before being started, nothing else owns the channel
+        reactor.execute {
+            if (socket == null) channel.close()
         }
     }
 }
@@ -446,11 +1038,54 @@ class ServerTransport(
 object TransportFactory {
     /**
      * Create a transport based on mode
+     * @param executor Runs handler callbacks and blocking setup work of the transport
+     */
+    fun create(
+        mode: TransportMode,
+        host: String,
+        port: Int,
+        executor: TransportExecutor = TransportExecutor.default
+    ): DebugTransport {
+        return when (mode) {
+            TransportMode.CLIENT -> ClientTransport(host, port, executor).configured()
+            TransportMode.SERVER -> ServerTransport(host, port, executor).configured()
+        }
+    }
+
+    /**
+     * Create a transport over a Unix domain socket at [socketPath]
+     * @param executor Runs handler callbacks and blocking setup work of the transport
      */
-    fun create(mode: TransportMode, host: String, port: Int): DebugTransport {
+    fun createUnixSocket(
+        mode: TransportMode,
+        socketPath: String,
+        executor: TransportExecutor = TransportExecutor.default
+    ): DebugTransport {
         return when (mode) {
-            TransportMode.CLIENT -> ClientTransport(host, port)
-            TransportMode.SERVER -> ServerTransport(host, port)
+            TransportMode.CLIENT -> UnixSocketClientTransport(socketPath, executor).configured()
+            TransportMode.SERVER -> UnixSocketServerTransport(socketPath, executor).configured()
+        }
+    }
+
+    /**
+     * Apply the IDE-wide transport tuning from the registry
+     */
+    private fun <T : SocketChannelTransport> T.configured(): T = apply {
+        compressionThreshold = Registry.intValue(
+            "emmy.debugger.compression.threshold",
+            SocketChannelTransport.DEFAULT_COMPRESSION_THRESHOLD
+        )
+        offerCbor = Registry.`is`("emmy.debugger.cbor", true)
+        offerSharedMemory = Registry.`is`("emmy.debugger.shared.memory", false)
+        offerEvalBatch = Registry.`is`("emmy.debugger.eval.batch", true)
+        outboundCapacity = Registry.intValue(
+            "emmy.debugger.outbound.queue.capacity",
+            OutboundQueue.DEFAULT_CAPACITY
+        )
+        val captureDir = Registry.stringValue("emmy.debugger.capture.dir")
+        if (captureDir.isNotBlank()) {
+            val name = "emmy-${SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(Date())}.${TrafficCapture.EXTENSION}"
+            capture = TrafficRecorder(File(captureDir, name))
         }
     }
 }
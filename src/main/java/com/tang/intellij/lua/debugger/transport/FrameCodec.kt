@@ -0,0 +1,654 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.google.gson.stream.JsonWriter
+import com.tang.intellij.lua.debugger.model.CborWriter
+import com.tang.intellij.lua.debugger.model.DebugMessage
+import com.tang.intellij.lua.debugger.model.PayloadEncoding
+import java.io.IOException
+import java.io.OutputStream
+import java.io.Writer
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CodingErrorAction
+import java.nio.channels.GatheringByteChannel
+import java.nio.channels.ReadableByteChannel
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * Wire framing of the Emmy protocol
+ *
+ * LINE is the original format every debugger understands:
+ *   "<cmd>\n<json>\n"
+ *
+ * BINARY is negotiated through [com.tang.intellij.lua.debugger.model.DebugCapabilities.BINARY_FRAMING]:
+ *   [cmd:int32][length:int32][payload], big-endian
+ *
+ * Command ids are small, so the first byte of a binary frame is always 0 and never
+ * starts a line frame. The decoder relies on that to tell the formats apart frame by
+ * frame, which means either side may switch without further synchronization.
+ *
+ * Once [com.tang.intellij.lua.debugger.model.DebugCapabilities.DEFLATE] is negotiated too,
+ * large binary payloads may be deflated. Such frames have the top bit of the length set
+ * and carry the inflated size in front of the zlib stream:
+ *   [cmd:int32][length | 0x80000000:int32][inflatedLength:int32][deflated payload]
+ */
+enum class FrameFormat {
+    LINE,
+    BINARY
+}
+
+/**
+ * Receives decoded frames from [FrameDecoder]
+ */
+fun interface FrameConsumer {
+    /**
+     * @param cmd The raw command id
+     * @param payload View of the payload bytes, only valid for the duration of the call
+     */
+    fun onFrame(cmd: Int, payload: ByteBuffer)
+}
+
+/**
+ * Incremental frame decoder backed by a single reusable buffer.
+ *
+ * Bytes are appended with [readFrom] and complete frames are handed out by [drain];
+ * partial frames stay in the buffer until the rest arrives. Line frames are scanned
+ * at the byte level and never rescanned, binary frames are located by their header.
+ */
+class FrameDecoder(initialCapacity: Int = DEFAULT_CAPACITY) {
+
+    // Unread data lives in [0, position) between calls
+    private var buffer: ByteBuffer = ByteBuffer.allocate(initialCapacity)
+
+    // Bytes of the pending line frame that are known not to contain its terminator
+    private var scanned = 0
+
+    // Inflated payload of the last compressed frame, reused between frames
+    private var inflated: ByteBuffer? = null
+    private val inflater by lazy { Inflater() }
+
+    /**
+     * Read available bytes from [channel]
+     * @return the number of bytes read, or -1 at end of stream
+     */
+    fun readFrom(channel: ReadableByteChannel): Int {
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2)
+        }
+        return channel.read(buffer)
+    }
+
+    /**
+     * Decode every complete frame currently buffered
+     */
+    fun drain(consumer: FrameConsumer) {
+        buffer.flip()
+        try {
+            while (buffer.hasRemaining()) {
+                val decoded = if (buffer.get(buffer.position()) == 0.toByte()) {
+                    decodeBinary(consumer)
+                } else {
+                    decodeLine(consumer)
+                }
+                if (!decoded) break
+            }
+        } finally {
+            buffer.compact()
+        }
+    }
+
+    private fun decodeBinary(consumer: FrameConsumer): Boolean {
+        val start = buffer.position()
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false
+        }
+        val cmd = buffer.getInt(start)
+        val rawLength = buffer.getInt(start + 4)
+        val compressed = rawLength and COMPRESSED_FLAG != 0
+        val length = rawLength and COMPRESSED_FLAG.inv()
+        if (length > MAX_FRAME_SIZE || (compressed && length < 4)) {
+            throw IOException("Invalid frame length: $length")
+        }
+        val frameSize = HEADER_SIZE + length
+        if (buffer.remaining() < frameSize) {
+            // Make sure the next read can complete the frame
+            reserve(frameSize)
+            return false
+        }
+        if (compressed) {
+            consumer.onFrame(cmd, inflate(start + HEADER_SIZE, start + frameSize))
+        } else {
+            deliver(consumer, cmd, start + HEADER_SIZE, start + frameSize)
+        }
+        buffer.position(start + frameSize)
+        return true
+    }
+
+    private fun inflate(from: Int, to: Int): ByteBuffer {
+        val size = buffer.getInt(from)
+        if (size < 0 || size > MAX_FRAME_SIZE) {
+            throw IOException("Invalid inflated length: $size")
+        }
+        val target = inflated?.takeIf { it.capacity() >= size } ?: ByteBuffer.allocate(size).also { inflated = it }
+        target.clear().limit(size)
+
+        val input = buffer.duplicate()
+        input.limit(to).position(from + 4)
+        inflater.reset()
+        inflater.setInput(input)
+        try {
+            while (target.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(target) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break
+                }
+            }
+        } catch (e: DataFormatException) {
+            throw IOException("Corrupt compressed frame", e)
+        }
+        if (target.hasRemaining() || !inflater.finished()) {
+            throw IOException("Compressed frame does not inflate to $size bytes")
+        }
+        target.flip()
+        return target
+    }
+
+    private fun decodeLine(consumer: FrameConsumer): Boolean {
+        val start = buffer.position()
+        val limit = buffer.limit()
+
+        val cmdEnd = indexOfNewline(start, limit)
+        if (cmdEnd < 0) {
+            return false
+        }
+        val cmd = parseInt(start, cmdEnd)
+        if (cmd == null) {
+            // Not a command line, skip it
+            buffer.position(cmdEnd + 1)
+            scanned = 0
+            return true
+        }
+
+        val payloadStart = cmdEnd + 1
+        val payloadEnd = indexOfNewline(maxOf(payloadStart, start + scanned), limit)
+        if (payloadEnd < 0) {
+            scanned = limit - start
+            return false
+        }
+        scanned = 0
+
+        val end = if (payloadEnd > payloadStart && buffer.get(payloadEnd - 1) == CR) payloadEnd - 1 else payloadEnd
+        deliver(consumer, cmd, payloadStart, end)
+        buffer.position(payloadEnd + 1)
+        return true
+    }
+
+    private fun deliver(consumer: FrameConsumer, cmd: Int, from: Int, to: Int) {
+        val payload = buffer.duplicate()
+        payload.limit(to).position(from)
+        consumer.onFrame(cmd, payload.slice())
+    }
+
+    private fun indexOfNewline(from: Int, to: Int): Int {
+        for (i in from until to) {
+            if (buffer.get(i) == LF) return i
+        }
+        return -1
+    }
+
+    private fun parseInt(from: Int, to: Int): Int? {
+        var end = to
+        while (end > from && buffer.get(end - 1).let { it == CR || it == SPACE }) end--
+        if (end == from) return null
+
+        var i = from
+        val negative = buffer.get(i) == MINUS
+        if (negative) i++
+        if (i == end || end - i > 9) return null
+
+        var value = 0
+        while (i < end) {
+            val digit = buffer.get(i) - ZERO
+            if (digit !in 0..9) return null
+            value = value * 10 + digit
+            i++
+        }
+        return if (negative) -value else value
+    }
+
+    /**
+     * Ensure a frame of [frameSize] bytes fits; called with the buffer in read mode
+     */
+    private fun reserve(frameSize: Int) {
+        if (buffer.capacity() < frameSize) {
+            val grown = ByteBuffer.allocate(maxOf(frameSize, buffer.capacity() * 2))
+            grown.put(buffer.duplicate())
+            grown.flip()
+            buffer = grown
+        }
+    }
+
+    private fun grow(capacity: Int) {
+        val grown = ByteBuffer.allocate(capacity)
+        buffer.flip()
+        grown.put(buffer)
+        buffer = grown
+    }
+
+    companion object {
+        const val HEADER_SIZE = 8
+        const val DEFAULT_CAPACITY = 64 * 1024
+        const val MAX_FRAME_SIZE = 512 * 1024 * 1024
+        const val COMPRESSED_FLAG = 1 shl 31
+
+        private const val LF = '\n'.code.toByte()
+        private const val CR = '\r'.code.toByte()
+        private const val SPACE = ' '.code.toByte()
+        private const val MINUS = '-'.code.toByte()
+        private const val ZERO = '0'.code.toByte()
+    }
+}
+
+/**
+ * Outgoing frames encoded into pooled direct buffers.
+ *
+ * Frames accumulate until [flushTo] pushes everything with gathering writes, so a
+ * burst of messages costs a single system call when the socket can take it.
+ * Not thread-safe, owned by the reactor thread.
+ */
+class FrameOutput(private val pool: BufferPool = BufferPool.shared) {
+
+    // Sealed chunks, in read mode
+    private val chunks = ArrayDeque<ByteBuffer>()
+
+    // Chunk being filled, in write mode
+    private var current: ByteBuffer? = null
+
+    /**
+     * Binary payloads of at least this many bytes are deflated, a negative value disables compression
+     */
+    var compressionThreshold = -1
+
+    private val deflater by lazy { Deflater(Deflater.BEST_SPEED) }
+
+    val isEmpty: Boolean
+        get() = chunks.isEmpty() && (current?.position() ?: 0) == 0
+
+    /**
+     * Encode [message] as one frame, streaming its payload straight into the buffers.
+     * If encoding fails, the partial frame is discarded and the exception rethrown.
+     * @param encoding Payload encoding; CBOR needs [FrameFormat.BINARY]
+     * @param payloadCopy Receives a copy of the payload as encoded, before compression,
+     * e.g. for a capture
+     * @return the size of the frame in bytes
+     */
+    fun writeMessage(
+        format: FrameFormat,
+        message: DebugMessage,
+        encoding: PayloadEncoding = PayloadEncoding.JSON,
+        payloadCopy: ((ByteArray) -> Unit)? = null
+    ): Int {
+        require(format == FrameFormat.BINARY || encoding == PayloadEncoding.JSON) { "Line frames carry JSON only" }
+        val markCount = chunks.size
+        val markChunk = current
+        val markPosition = markChunk?.position() ?: 0
+        try {
+            return when (format) {
+                FrameFormat.LINE -> {
+                    val digits = putAscii(message.cmd)
+                    put(LF)
+                    val start = reserve(1)
+                    val from = start.position()
+                    val length = writePayload(message, encoding)
+                    payloadCopy?.invoke(copyPayload(start, from, length))
+                    put(LF)
+                    digits + length + 2
+                }
+
+                FrameFormat.BINARY -> {
+                    val header = reserve(FrameDecoder.HEADER_SIZE)
+                    val at = header.position()
+                    header.putInt(message.cmd).putInt(0)
+                    val length = writePayload(message, encoding)
+                    header.putInt(at + 4, length)
+                    payloadCopy?.invoke(copyPayload(header, at + FrameDecoder.HEADER_SIZE, length))
+
+                    if (compressionThreshold >= 0 && length >= compressionThreshold) {
+                        val deflated = deflate(header, at + FrameDecoder.HEADER_SIZE)
+                        if (deflated != null) {
+                            // Replace the frame written above with its compressed form
+                            rollback(markCount, markChunk, markPosition)
+                            return writeCompressed(message.cmd, length, deflated)
+                        }
+                    }
+                    FrameDecoder.HEADER_SIZE + length
+                }
+            }
+        } catch (e: Exception) {
+            rollback(markCount, markChunk, markPosition)
+            throw e
+        }
+    }
+
+    /**
+     * Deflate the payload that starts at [from] in [header] and runs to the end of the output
+     * @return the compressed chunks in read mode, or null if compression does not pay off
+     */
+    private fun deflate(header: ByteBuffer, from: Int): List<ByteBuffer>? {
+        val segments = segmentsFrom(header, from)
+        val output = ArrayList<ByteBuffer>()
+        val payloadSize = segments.sumOf { it.remaining().toLong() }
+        var worthIt = false
+        deflater.reset()
+        try {
+            for (segment in segments) {
+                deflater.setInput(segment)
+                while (!deflater.needsInput()) {
+                    deflateInto(output)
+                }
+            }
+            deflater.finish()
+            while (!deflater.finished() && deflater.bytesWritten < payloadSize) {
+                deflateInto(output)
+            }
+            worthIt = deflater.finished() && deflater.bytesWritten < payloadSize
+        } finally {
+            if (!worthIt) output.forEach(pool::release)
+        }
+        if (!worthIt) return null
+        output.forEach { it.flip() }
+        return output
+    }
+
+    /**
+     * Views of everything written from [from] in [chunk] to the end of the output
+     */
+    private fun segmentsFrom(chunk: ByteBuffer, from: Int): List<ByteBuffer> {
+        val segments = ArrayList<ByteBuffer>()
+        var started = false
+        for (sealed in chunks) {
+            if (sealed === chunk) {
+                started = true
+                segments.add(sealed.duplicate().position(from))
+            } else if (started) {
+                segments.add(sealed.duplicate())
+            }
+        }
+        current?.let { open ->
+            val view = open.duplicate().flip()
+            segments.add(if (open === chunk) view.position(from) else view)
+        }
+        return segments
+    }
+
+    private fun copyPayload(chunk: ByteBuffer, from: Int, length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        var offset = 0
+        for (segment in segmentsFrom(chunk, from)) {
+            val count = minOf(segment.remaining(), length - offset)
+            segment.get(bytes, offset, count)
+            offset += count
+            if (offset == length) break
+        }
+        return bytes
+    }
+
+    private fun deflateInto(output: MutableList<ByteBuffer>) {
+        val chunk = output.lastOrNull()?.takeIf { it.hasRemaining() } ?: pool.acquire().also { output.add(it) }
+        deflater.deflate(chunk)
+    }
+
+    private fun writeCompressed(cmd: Int, length: Int, deflated: List<ByteBuffer>): Int {
+        val compressedLength = 4 + deflated.sumOf { it.remaining() }
+        reserve(FrameDecoder.HEADER_SIZE + 4)
+            .putInt(cmd)
+            .putInt(compressedLength or FrameDecoder.COMPRESSED_FLAG)
+            .putInt(length)
+        seal()
+        chunks.addAll(deflated)
+        return FrameDecoder.HEADER_SIZE + compressedLength
+    }
+
+    private fun writePayload(message: DebugMessage, encoding: PayloadEncoding): Int {
+        return when (encoding) {
+            PayloadEncoding.JSON -> {
+                payloadWriter.begin()
+                val json = JsonWriter(payloadWriter)
+                message.writeJSON(json)
+                json.flush()
+                payloadWriter.end()
+            }
+
+            PayloadEncoding.CBOR -> {
+                payloadStream.bytes = 0
+                message.writeJSON(CborWriter(payloadStream))
+                payloadStream.bytes
+            }
+        }
+    }
+
+    /**
+     * Write as much as the channel accepts
+     * @return the number of write calls issued
+     */
+    fun flushTo(channel: GatheringByteChannel): Int {
+        seal()
+        var calls = 0
+        while (chunks.isNotEmpty()) {
+            channel.write(chunks.toTypedArray())
+            calls++
+            while (chunks.isNotEmpty() && !chunks.first().hasRemaining()) {
+                pool.release(chunks.removeFirst())
+            }
+            if (chunks.isNotEmpty()) {
+                // Socket buffer is full, wait for OP_WRITE
+                break
+            }
+        }
+        return calls
+    }
+
+    /**
+     * Drop all pending data
+     */
+    fun clear() {
+        chunks.forEach(pool::release)
+        chunks.clear()
+        current?.let(pool::release)
+        current = null
+    }
+
+    private fun putAscii(value: Int): Int {
+        val chunk = reserve(MAX_INT_DIGITS)
+        val start = chunk.position()
+        var rest = value
+        if (rest < 0) {
+            chunk.put(MINUS)
+            rest = -rest
+        }
+        var divisor = 1
+        while (rest / divisor >= 10) divisor *= 10
+        while (divisor > 0) {
+            chunk.put((ZERO + rest / divisor % 10).toByte())
+            divisor /= 10
+        }
+        return chunk.position() - start
+    }
+
+    private fun put(byte: Byte) {
+        reserve(1).put(byte)
+    }
+
+    /**
+     * Current chunk with at least [size] bytes free, [size] must not exceed the chunk size
+     */
+    private fun reserve(size: Int): ByteBuffer {
+        val chunk = current
+        if (chunk != null && chunk.remaining() >= size) {
+            return chunk
+        }
+        seal()
+        return pool.acquire().also { current = it }
+    }
+
+    private fun rollback(markCount: Int, markChunk: ByteBuffer?, markPosition: Int) {
+        while (chunks.size > markCount) {
+            val chunk = chunks.removeLast()
+            if (chunk !== markChunk) pool.release(chunk)
+        }
+        current?.takeIf { it !== markChunk }?.let(pool::release)
+        current = markChunk?.apply {
+            limit(capacity())
+            position(markPosition)
+        }
+    }
+
+    private fun seal() {
+        val chunk = current ?: return
+        current = null
+        if (chunk.position() == 0) {
+            pool.release(chunk)
+        } else {
+            chunk.flip()
+            chunks.addLast(chunk)
+        }
+    }
+
+    /**
+     * Streams characters through an incremental UTF-8 encoder into the chunks.
+     * Characters are staged in a reusable buffer and encoded in bulk, as JsonWriter
+     * writes every bracket, colon and quote on its own.
+     */
+    private inner class PayloadWriter : Writer() {
+        private val encoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+        // Characters not encoded yet, in write mode; may start with a high surrogate
+        // waiting for the rest of its pair
+        private val staging = CharBuffer.allocate(STAGING_CHARS)
+        private var bytes = 0
+
+        fun begin() {
+            encoder.reset()
+            staging.clear()
+            bytes = 0
+        }
+
+        fun end(): Int {
+            encode(true)
+            var chunk = reserve(1)
+            while (true) {
+                val before = chunk.position()
+                val result = encoder.flush(chunk)
+                bytes += chunk.position() - before
+                if (!result.isOverflow) break
+                seal()
+                chunk = reserve(1)
+            }
+            return bytes
+        }
+
+        override fun write(cbuf: CharArray, off: Int, len: Int) {
+            var from = off
+            val to = off + len
+            while (from < to) {
+                if (!staging.hasRemaining()) encode(false)
+                val count = minOf(staging.remaining(), to - from)
+                staging.put(cbuf, from, count)
+                from += count
+            }
+        }
+
+        override fun write(str: String, off: Int, len: Int) {
+            var from = off
+            val to = off + len
+            while (from < to) {
+                if (!staging.hasRemaining()) encode(false)
+                val count = minOf(staging.remaining(), to - from)
+                staging.put(str, from, from + count)
+                from += count
+            }
+        }
+
+        override fun write(c: Int) {
+            if (!staging.hasRemaining()) encode(false)
+            staging.put(c.toChar())
+        }
+
+        private fun encode(endOfInput: Boolean) {
+            staging.flip()
+            while (true) {
+                val chunk = reserve(1)
+                val before = chunk.position()
+                val result = encoder.encode(staging, chunk, endOfInput)
+                bytes += chunk.position() - before
+                if (!result.isOverflow) break
+                seal()
+            }
+            // Keeps a trailing high surrogate for the next write
+            staging.compact()
+        }
+
+        override fun flush() {
+        }
+
+        override fun close() {
+        }
+    }
+
+    private val payloadWriter = PayloadWriter()
+
+    /**
+     * Copies binary payloads into the chunks
+     */
+    private inner class PayloadStream : OutputStream() {
+        var bytes = 0
+
+        override fun write(b: Int) {
+            reserve(1).put(b.toByte())
+            bytes++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var from = off
+            val to = off + len
+            while (from < to) {
+                val chunk = reserve(1)
+                val count = minOf(chunk.remaining(), to - from)
+                chunk.put(b, from, count)
+                from += count
+            }
+            bytes += len
+        }
+    }
+
+    private val payloadStream = PayloadStream()
+
+    companion object {
+        private const val LF = '\n'.code.toByte()
+        private const val MINUS = '-'.code.toByte()
+        private const val ZERO = '0'.code
+        private const val MAX_INT_DIGITS = 11
+
+        // Characters encoded per call into the UTF-8 encoder
+        private const val STAGING_CHARS = 1024
+    }
+}
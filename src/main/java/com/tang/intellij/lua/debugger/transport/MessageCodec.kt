@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.google.gson.stream.JsonReader
+import com.tang.intellij.lua.debugger.model.CborReader
+import com.tang.intellij.lua.debugger.model.DebugProtocolCodec
+import com.tang.intellij.lua.debugger.model.PayloadEncoding
+import com.tang.intellij.lua.debugger.model.parseMessage
+import java.io.Reader
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.charset.CodingErrorAction
+
+/**
+ * Payload of a received message, kept as UTF-8 or CBOR bytes in pooled direct buffers.
+ *
+ * Consumers stream it through [reader] (or [parse]) instead of materializing a String.
+ * The payload is released once the handler that received it returns, so it must not
+ * be used after that.
+ */
+class MessagePayload private constructor(
+    private val chunks: List<ByteBuffer>,
+    private val pool: BufferPool
+) {
+    /**
+     * Payload size in bytes
+     */
+    val size: Int = chunks.sumOf { it.remaining() }
+
+    /**
+     * Encoding of the payload, told by its first byte
+     */
+    val encoding: PayloadEncoding = chunks.firstOrNull { it.hasRemaining() }
+        ?.let { PayloadEncoding.of(it.get(it.position())) }
+        ?: PayloadEncoding.JSON
+
+    /**
+     * Stream a JSON payload as characters
+     */
+    fun reader(): Reader = ChunkReader(chunks)
+
+    /**
+     * Decode the whole payload into a String, for logging and diagnostics
+     */
+    fun text(): String = reader().use { it.readText() }
+
+    /**
+     * Copy the payload into a heap array that outlives [release], for decoders that keep
+     * slices of it
+     */
+    fun toByteArray(): ByteArray {
+        val bytes = ByteArray(size)
+        var offset = 0
+        for (chunk in chunks) {
+            val length = chunk.remaining()
+            chunk.duplicate().get(bytes, offset, length)
+            offset += length
+        }
+        return bytes
+    }
+
+    /**
+     * Return the buffers to the pool
+     */
+    fun release() {
+        chunks.forEach(pool::release)
+    }
+
+    override fun toString() = "MessagePayload($size bytes)"
+
+    companion object {
+        /**
+         * Copy [source] into pooled buffers. Chunks are split on character boundaries
+         * so each of them decodes on its own.
+         */
+        fun copyOf(source: ByteBuffer, pool: BufferPool = BufferPool.shared): MessagePayload {
+            val src = source.duplicate()
+            val chunks = mutableListOf<ByteBuffer>()
+            while (src.hasRemaining()) {
+                val chunk = pool.acquire()
+                var count = minOf(chunk.remaining(), src.remaining())
+                if (count < src.remaining()) {
+                    // Don't cut a multi-byte sequence: back off to its lead byte
+                    val end = src.position() + count
+                    var back = 0
+                    while (back < 3 && isContinuation(src.get(end - back))) back++
+                    count -= back
+                }
+                val slice = src.duplicate()
+                slice.limit(src.position() + count)
+                chunk.put(slice)
+                chunk.flip()
+                src.position(src.position() + count)
+                chunks.add(chunk)
+            }
+            return MessagePayload(chunks, pool)
+        }
+
+        /**
+         * Wrap text that did not come from the network, e.g. replayed or synthesized messages
+         */
+        fun of(text: String): MessagePayload = copyOf(Charsets.UTF_8.encode(text))
+
+        private fun isContinuation(byte: Byte) = (byte.toInt() and 0xC0) == 0x80
+    }
+}
+
+/**
+ * Parse a received payload into a specific message type
+ */
+inline fun <reified T> MessagePayload.parse(): T? = when (encoding) {
+    PayloadEncoding.JSON -> parseMessage<T>(reader())
+    PayloadEncoding.CBOR -> parseMessage<T>(toByteArray())
+}
+
+/**
+ * Sequence numbers of an EvalRsp or EvalBatchRsp payload, without decoding its values
+ * @return an empty list if the payload is malformed
+ */
+fun MessagePayload.evalSeqs(): List<Int> {
+    return try {
+        when (encoding) {
+            PayloadEncoding.JSON -> reader().use { DebugProtocolCodec.readEvalSeqs(JsonReader(it)) }
+            PayloadEncoding.CBOR -> DebugProtocolCodec.readEvalSeqs(CborReader(toByteArray()))
+        }
+    } catch (e: Exception) {
+        emptyList()
+    }
+}
+
+/**
+ * Incremental UTF-8 decoding over the chunks of a [MessagePayload]
+ */
+private class ChunkReader(chunks: List<ByteBuffer>) : Reader() {
+
+    private val decoder = Charsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+
+    private val inputs = chunks.map { it.duplicate() }
+    private var index = 0
+
+    override fun read(cbuf: CharArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+
+        val out = CharBuffer.wrap(cbuf, off, len)
+        while (out.hasRemaining() && index < inputs.size) {
+            val input = inputs[index]
+            val result = decoder.decode(input, out, false)
+            if (result.isOverflow) break
+            // Chunks hold whole characters; anything left is a truncated tail
+            index++
+        }
+
+        val count = out.position() - off
+        return if (count == 0 && index >= inputs.size) -1 else count
+    }
+
+    override fun close() {
+        index = inputs.size
+    }
+}
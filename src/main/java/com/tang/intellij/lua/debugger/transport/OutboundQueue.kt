@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.tang.intellij.lua.debugger.model.DebugAction
+import com.tang.intellij.lua.debugger.model.DebugActionRequest
+import com.tang.intellij.lua.debugger.model.DebugMessage
+import com.tang.intellij.lua.debugger.model.EvalPriority
+import com.tang.intellij.lua.debugger.model.EvalRequest
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import javax.swing.SwingUtilities
+import kotlin.concurrent.withLock
+
+/**
+ * Outgoing messages waiting for the socket, in two lanes.
+ *
+ * The control lane holds actions, breakpoints and the handshake; it is unbounded and
+ * always drained first, so pause and stop are never stuck behind evaluation traffic.
+ * The bulk lane holds evaluations and is bounded by [capacity]: senders wait for room
+ * for at most [backpressureTimeoutMs], the UI thread never waits. Within it, evaluations
+ * for what is on screen go before background ones, see [EvalPriority]; background
+ * evaluations never wait for room.
+ *
+ * Queuing an action that resumes the debuggee drops the evaluations still waiting,
+ * their results would belong to a suspend state that no longer exists.
+ */
+class OutboundQueue(
+    @Volatile var capacity: Int = DEFAULT_CAPACITY,
+    @Volatile var backpressureTimeoutMs: Long = DEFAULT_BACKPRESSURE_TIMEOUT_MS
+) {
+    private val lock = ReentrantLock()
+    private val notFull = lock.newCondition()
+
+    private val control = ArrayDeque<DebugMessage>()
+
+    // The bulk lane, one queue per priority
+    private val bulk = Array(EvalPriority.entries.size) { ArrayDeque<EvalRequest>() }
+    private var bulkSize = 0
+
+    /**
+     * Number of queued messages in both lanes
+     */
+    val size: Int
+        get() = lock.withLock { control.size + bulkSize }
+
+    /**
+     * Queue [message]
+     * @return messages dropped by this call, including [message] itself if the bulk lane stayed full
+     */
+    fun offer(message: DebugMessage): List<DebugMessage> {
+        lock.withLock {
+            if (message !is EvalRequest) {
+                control.addLast(message)
+                return if (resumes(message)) dropBulk() else emptyList()
+            }
+
+            if (bulkSize >= capacity) {
+                val wait = !SwingUtilities.isEventDispatchThread() && message.priority == EvalPriority.VISIBLE
+                var nanos = TimeUnit.MILLISECONDS.toNanos(backpressureTimeoutMs)
+                while (bulkSize >= capacity && wait && nanos > 0) {
+                    nanos = notFull.awaitNanos(nanos)
+                }
+                if (bulkSize >= capacity) {
+                    return listOf(message)
+                }
+            }
+            bulk[message.priority.ordinal].addLast(message)
+            bulkSize++
+            return emptyList()
+        }
+    }
+
+    /**
+     * Queue control messages together, e.g. a handshake: a sender polling concurrently
+     * sees all of them or none, so they leave in a single write
+     */
+    fun offerAll(messages: List<DebugMessage>) {
+        require(messages.none { it is EvalRequest }) { "Only control messages can be queued together" }
+        lock.withLock {
+            control.addAll(messages)
+        }
+    }
+
+    /**
+     * Next message to send, control messages first
+     */
+    fun poll(): DebugMessage? {
+        lock.withLock {
+            control.removeFirstOrNull()?.let { return it }
+            return pollBulk()
+        }
+    }
+
+    /**
+     * Next evaluation to send, or null if there is none or a control message goes first
+     */
+    fun pollEval(): EvalRequest? {
+        lock.withLock {
+            if (control.isNotEmpty()) return null
+            return pollBulk()
+        }
+    }
+
+    /**
+     * Drop everything queued
+     * @return the dropped messages
+     */
+    fun clear(): List<DebugMessage> {
+        lock.withLock {
+            val dropped = ArrayList<DebugMessage>(control.size + bulkSize)
+            dropped.addAll(control)
+            control.clear()
+            dropped.addAll(dropBulk())
+            return dropped
+        }
+    }
+
+    private fun pollBulk(): EvalRequest? {
+        for (lane in bulk) {
+            val message = lane.removeFirstOrNull() ?: continue
+            bulkSize--
+            notFull.signal()
+            return message
+        }
+        return null
+    }
+
+    private fun dropBulk(): List<DebugMessage> {
+        if (bulkSize == 0) return emptyList()
+        val dropped = ArrayList<DebugMessage>(bulkSize)
+        bulk.forEach { lane ->
+            dropped.addAll(lane)
+            lane.clear()
+        }
+        bulkSize = 0
+        notFull.signalAll()
+        return dropped
+    }
+
+    private fun resumes(message: DebugMessage): Boolean {
+        return message is DebugActionRequest && message.action != DebugAction.Break.ordinal
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 256
+        const val DEFAULT_BACKPRESSURE_TIMEOUT_MS = 2000L
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.tang.intellij.lua.debugger.model.parseCommand
+import java.io.EOFException
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Replay speed of a [ReplayTransport]
+ */
+enum class ReplaySpeed {
+    /** Keep the recorded gaps between frames */
+    ORIGINAL,
+
+    /** Deliver frames back to back */
+    MAXIMUM
+}
+
+/**
+ * Transport playing back the debugger side of a capture file written by [TrafficRecorder].
+ *
+ * Inbound frames go through the regular handler path, so the session, value tree and
+ * UI behave as they did when the capture was taken. Messages sent by the IDE are
+ * discarded and reported as dropped; recorded outbound frames are skipped.
+ */
+class ReplayTransport(
+    private val file: File,
+    private val speed: ReplaySpeed = ReplaySpeed.ORIGINAL
+) : DebugTransport(file.path, 0) {
+
+    @Volatile
+    private var thread: Thread? = null
+
+    override val endpoint: String
+        get() = file.name
+
+    override fun start() {
+        val replay = Thread(::replay, "Emmy Debugger Replay")
+        replay.isDaemon = true
+        thread = replay
+        replay.start()
+    }
+
+    override fun stop() {
+        super.stop()
+        thread?.interrupt()
+    }
+
+    override fun isConnected(): Boolean {
+        return isRunning.get()
+    }
+
+    override fun onMessageQueued() {
+        // There is no debugger to answer, pending evaluations fail right away
+        notifyDropped(messageQueue.clear())
+    }
+
+    private fun replay() {
+        val reader = try {
+            CaptureReader(file)
+        } catch (e: Exception) {
+            error("Cannot open capture file: ${e.message}", e)
+            notifyConnected(false)
+            return
+        }
+
+        isRunning.set(true)
+        notifyConnected(true)
+        log("Replaying ${file.name} at ${speed.name.lowercase()} speed")
+
+        val origin = System.nanoTime()
+        var frames = 0
+        try {
+            reader.use {
+                while (!isStopped.get() && reader.hasNext()) {
+                    val frame = reader.next()
+                    if (frame.direction != CaptureDirection.INBOUND) continue
+
+                    if (speed == ReplaySpeed.ORIGINAL) {
+                        waitUntil(origin + frame.timeNanos)
+                    }
+                    if (isStopped.get()) break
+
+                    val start = System.nanoTime()
+                    val payload = MessagePayload.copyOf(ByteBuffer.wrap(frame.payload))
+                    metrics.recordReceived(frame.cmd, frame.payload.size, System.nanoTime() - start)
+                    notifyMessage(parseCommand(frame.cmd), payload)
+                    frames++
+                }
+            }
+        } catch (e: EOFException) {
+            log("Capture file is truncated, replay ends early")
+        } catch (e: Exception) {
+            if (!isStopped.get()) {
+                error("Replay failed: ${e.message}", e)
+            }
+        }
+
+        log("Replayed $frames frames in ${TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin)} ms")
+        isRunning.set(false)
+        notifyDisconnected()
+    }
+
+    private fun waitUntil(deadline: Long) {
+        while (!isStopped.get()) {
+            val remaining = deadline - System.nanoTime()
+            if (remaining <= 0) return
+            LockSupport.parkNanos(remaining)
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Matches responses to the requests waiting for them, by sequence number.
+ *
+ * Every registered request completes exactly once: with its response, by timing out, or
+ * by being cancelled (e.g. when the debuggee resumes and the values it asked for are
+ * gone). A response arriving after that is counted as orphaned and ignored, so it can
+ * never reach a callback that belongs to another request.
+ *
+ * @param fail Completes a callback with an error, called outside of any lock
+ * @param metrics Metrics of the current transport, if any
+ */
+class RequestCorrelator<H : Any>(
+    private val fail: (H, String) -> Unit,
+    private val metrics: () -> TransportMetrics? = { null }
+) {
+    /**
+     * Milliseconds a request may wait for its response, 0 to wait forever
+     */
+    @Volatile
+    var timeoutMs: Long = DEFAULT_TIMEOUT_MS
+
+    /**
+     * Requests allowed to wait at the same time; further ones are refused
+     */
+    @Volatile
+    var maxInFlight: Int = DEFAULT_MAX_IN_FLIGHT
+
+    private class Pending<H>(val handler: H) {
+        @Volatile
+        var timeout: ScheduledFuture<*>? = null
+    }
+
+    private val pending = ConcurrentHashMap<Int, Pending<H>>()
+
+    /**
+     * Requests waiting for a response
+     */
+    val size: Int
+        get() = pending.size
+
+    /**
+     * Wait for the response to request [seq]
+     * @return false if the request was refused; [handler] has been failed already
+     */
+    fun register(seq: Int, handler: H): Boolean {
+        if (pending.size >= maxInFlight) {
+            metrics()?.evalsRejected?.incrementAndGet()
+            fail(handler, "Too many pending evaluations")
+            return false
+        }
+        val entry = Pending(handler)
+        if (pending.putIfAbsent(seq, entry) != null) {
+            fail(handler, "Duplicate request sequence $seq")
+            return false
+        }
+        val timeout = timeoutMs
+        if (timeout > 0) {
+            entry.timeout = scheduler.schedule({ expire(seq, entry, timeout) }, timeout, TimeUnit.MILLISECONDS)
+        }
+        return true
+    }
+
+    /**
+     * Callback waiting for the response to [seq], left pending
+     */
+    fun peek(seq: Int): H? = pending[seq]?.handler
+
+    /**
+     * The response to [seq] has arrived
+     * @return its callback, or null if nobody waits for it any more
+     */
+    fun complete(seq: Int): H? {
+        val entry = pending.remove(seq)
+        if (entry == null) {
+            metrics()?.evalsOrphaned?.incrementAndGet()
+            return null
+        }
+        entry.timeout?.cancel(false)
+        return entry.handler
+    }
+
+    /**
+     * Fail request [seq] with [reason] if it is still pending
+     */
+    fun cancel(seq: Int, reason: String) {
+        val entry = pending.remove(seq) ?: return
+        entry.timeout?.cancel(false)
+        metrics()?.recordEvalAbandoned(seq)
+        fail(entry.handler, reason)
+    }
+
+    /**
+     * Fail every pending request with [reason]
+     */
+    fun cancelAll(reason: String) {
+        pending.keys.forEach { cancel(it, reason) }
+    }
+
+    private fun expire(seq: Int, entry: Pending<H>, timeout: Long) {
+        if (!pending.remove(seq, entry)) return
+        metrics()?.let {
+            it.recordEvalAbandoned(seq)
+            it.evalsTimedOut.incrementAndGet()
+        }
+        fail(entry.handler, "Evaluation timed out after $timeout ms")
+    }
+
+    companion object {
+        const val DEFAULT_TIMEOUT_MS = 30_000L
+        const val DEFAULT_MAX_IN_FLIGHT = 128
+
+        // One timer thread for all sessions; cancelled timeouts are removed right away
+        private val scheduler = ScheduledThreadPoolExecutor(1) { runnable ->
+            Thread(runnable, "Emmy Debugger Request Timeouts").apply { isDaemon = true }
+        }.apply { removeOnCancelPolicy = true }
+    }
+}
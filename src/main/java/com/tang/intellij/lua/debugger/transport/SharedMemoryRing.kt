@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.lang.invoke.MethodHandles
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.ByteChannel
+import java.nio.channels.FileChannel
+import java.nio.channels.GatheringByteChannel
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Memory-mapped file shared by the IDE and a debugger on the same host, holding one
+ * single-producer/single-consumer ring per direction.
+ *
+ * Layout, little endian:
+ *  - header of [HEADER_SIZE] bytes: magic, version, ring capacity
+ *  - ring written by the creator (the IDE), then ring written by the opener (the debugger),
+ *    each a head and a tail position on cache lines of their own followed by the data
+ *
+ * Positions only grow; a ring holds `head - tail` bytes. Each side publishes its own
+ * position with release semantics and reads the other's with acquire semantics, so the
+ * rings carry the usual binary frames without any locking.
+ */
+class SharedMemoryRegion private constructor(
+    val file: File,
+    private val buffer: MappedByteBuffer,
+    val ringCapacity: Int,
+    creator: Boolean
+) : Closeable {
+
+    private val creatorRing = SpscRing(buffer, HEADER_SIZE, ringCapacity)
+    private val openerRing = SpscRing(buffer, HEADER_SIZE + RING_HEADER_SIZE + ringCapacity, ringCapacity)
+
+    /**
+     * This side's end of the rings: reads what the other side wrote, writes to the other side
+     */
+    val channel: RingChannel = if (creator) RingChannel(openerRing, creatorRing) else RingChannel(creatorRing, openerRing)
+
+    override fun close() {
+        channel.close()
+    }
+
+    companion object {
+        const val DEFAULT_RING_CAPACITY = 1 shl 20
+
+        private const val MAGIC = 0x314d4853594d4d45L // "EMMYSHM1"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 64
+        private const val RING_HEADER_SIZE = 128
+
+        /**
+         * Create the file and map it, as the IDE does before offering it to the debugger
+         * @param ringCapacity Bytes per direction, a power of two
+         */
+        fun create(file: File, ringCapacity: Int = DEFAULT_RING_CAPACITY): SharedMemoryRegion {
+            require(ringCapacity > 0 && ringCapacity and (ringCapacity - 1) == 0) { "Ring capacity must be a power of two" }
+            val buffer = map(file, sizeOf(ringCapacity))
+            // The debugger maps the file only after being told about it over the socket
+            buffer.putLong(0, MAGIC)
+            buffer.putInt(8, VERSION)
+            buffer.putInt(12, ringCapacity)
+            return SharedMemoryRegion(file, buffer, ringCapacity, creator = true)
+        }
+
+        /**
+         * Map a file made by [create], as the debugger does
+         */
+        fun open(file: File): SharedMemoryRegion {
+            val length = file.length()
+            if (length < HEADER_SIZE) throw IOException("Not a shared memory file: $file")
+            val buffer = map(file, length)
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+                throw IOException("Unsupported shared memory file: $file")
+            }
+            val ringCapacity = buffer.getInt(12)
+            if (ringCapacity <= 0 || sizeOf(ringCapacity) != length) {
+                throw IOException("Corrupt shared memory file: $file")
+            }
+            return SharedMemoryRegion(file, buffer, ringCapacity, creator = false)
+        }
+
+        private fun sizeOf(ringCapacity: Int): Long = HEADER_SIZE + 2L * (RING_HEADER_SIZE + ringCapacity)
+
+        private fun map(file: File, size: Long): MappedByteBuffer {
+            return RandomAccessFile(file, "rw").use { raf ->
+                raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.LITTLE_ENDIAN) as MappedByteBuffer
+            }
+        }
+    }
+}
+
+/**
+ * Single-producer/single-consumer byte ring inside a shared buffer.
+ * [write] must only be called by the producer, [read] only by the consumer.
+ */
+class SpscRing internal constructor(
+    private val buffer: ByteBuffer,
+    private val base: Int,
+    val capacity: Int
+) {
+    private val mask = capacity - 1
+    private val data = base + DATA
+
+    /**
+     * Copy as much of [src] as fits
+     * @return the number of bytes written, 0 when the ring is full
+     */
+    fun write(src: ByteBuffer): Int {
+        val head = POSITIONS.getAcquire(buffer, base + HEAD) as Long
+        val tail = POSITIONS.getAcquire(buffer, base + TAIL) as Long
+        val count = minOf(capacity - (head - tail), src.remaining().toLong()).toInt()
+        if (count == 0) return 0
+        val index = (head and mask.toLong()).toInt()
+        val first = minOf(count, capacity - index)
+        buffer.put(data + index, src, src.position(), first)
+        if (count > first) {
+            buffer.put(data, src, src.position() + first, count - first)
+        }
+        src.position(src.position() + count)
+        POSITIONS.setRelease(buffer, base + HEAD, head + count)
+        return count
+    }
+
+    /**
+     * Copy as many available bytes as [dst] can take
+     * @return the number of bytes read, 0 when the ring is empty
+     */
+    fun read(dst: ByteBuffer): Int {
+        val tail = POSITIONS.getAcquire(buffer, base + TAIL) as Long
+        val head = POSITIONS.getAcquire(buffer, base + HEAD) as Long
+        val count = minOf(head - tail, dst.remaining().toLong()).toInt()
+        if (count == 0) return 0
+        val index = (tail and mask.toLong()).toInt()
+        val first = minOf(count, capacity - index)
+        dst.put(dst.position(), buffer, data + index, first)
+        if (count > first) {
+            dst.put(dst.position() + first, buffer, data, count - first)
+        }
+        dst.position(dst.position() + count)
+        POSITIONS.setRelease(buffer, base + TAIL, tail + count)
+        return count
+    }
+
+    /**
+     * Bytes written and not read yet
+     */
+    val available: Int
+        get() = ((POSITIONS.getAcquire(buffer, base + HEAD) as Long) - (POSITIONS.getAcquire(buffer, base + TAIL) as Long)).toInt()
+
+    private companion object {
+        // Head and tail on cache lines of their own, the data after them
+        const val HEAD = 0
+        const val TAIL = 64
+        const val DATA = 128
+
+        val POSITIONS = MethodHandles.byteBufferViewVarHandle(LongArray::class.java, ByteOrder.LITTLE_ENDIAN)
+    }
+}
+
+/**
+ * Non-blocking channel over a pair of rings, so [FrameDecoder] and [FrameOutput] work on
+ * shared memory as they do on sockets. Reads and writes return 0 instead of blocking.
+ */
+class RingChannel internal constructor(
+    private val inbound: SpscRing,
+    private val outbound: SpscRing
+) : ByteChannel, GatheringByteChannel {
+
+    @Volatile
+    private var open = true
+
+    /**
+     * Whether the other side has written bytes not read yet
+     */
+    val hasInput: Boolean
+        get() = inbound.available > 0
+
+    override fun read(dst: ByteBuffer): Int = if (open) inbound.read(dst) else -1
+
+    override fun write(src: ByteBuffer): Int {
+        if (!open) throw IOException("Shared memory closed")
+        return outbound.write(src)
+    }
+
+    override fun write(srcs: Array<out ByteBuffer>, offset: Int, length: Int): Long {
+        var written = 0L
+        for (i in offset until offset + length) {
+            val src = srcs[i]
+            val count = write(src)
+            written += count
+            if (src.hasRemaining()) break
+        }
+        return written
+    }
+
+    override fun write(srcs: Array<out ByteBuffer>): Long = write(srcs, 0, srcs.size)
+
+    override fun isOpen(): Boolean = open
+
+    override fun close() {
+        open = false
+    }
+}
+
+/**
+ * How a thread serving shared memory waits for the other side without making system
+ * calls while traffic flows: it spins for a short while, then yields, and only parks,
+ * for growing intervals, once the other side has been quiet for [yieldNanos].
+ * Parking costs tens of microseconds of wake-up latency, spinning costs a core.
+ * [LockSupport.unpark] ends a park early.
+ */
+class RingIdleStrategy(
+    private val spinNanos: Long = DEFAULT_SPIN_NANOS,
+    private val yieldNanos: Long = DEFAULT_YIELD_NANOS,
+    private val maxParkNanos: Long = DEFAULT_MAX_PARK_NANOS
+) {
+    // Start of the current quiet period, 0 while busy
+    private var idleSince = 0L
+    private var parks = 0
+
+    /**
+     * Called after a round that found work
+     */
+    fun reset() {
+        idleSince = 0L
+        parks = 0
+    }
+
+    /**
+     * Called after a round that found nothing to do
+     */
+    fun idle() {
+        val now = System.nanoTime()
+        if (idleSince == 0L) idleSince = now
+        val quiet = now - idleSince
+        when {
+            quiet < spinNanos -> Thread.onSpinWait()
+            quiet < yieldNanos -> Thread.yield()
+            else -> {
+                LockSupport.parkNanos(minOf(MIN_PARK_NANOS shl minOf(parks, MAX_SHIFT), maxParkNanos))
+                parks++
+            }
+        }
+    }
+
+    companion object {
+        // Spinning on a single core only keeps the other side from running
+        val DEFAULT_SPIN_NANOS = if (Runtime.getRuntime().availableProcessors() > 1) 50_000L else 0L
+        const val DEFAULT_YIELD_NANOS = 2_000_000L
+        const val DEFAULT_MAX_PARK_NANOS = 1_000_000L
+
+        private const val MIN_PARK_NANOS = 50_000L
+        private const val MAX_SHIFT = 8
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.intellij.openapi.diagnostic.Logger
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Direction of a captured frame, seen from the IDE
+ */
+enum class CaptureDirection {
+    /** Debugger -> IDE */
+    INBOUND,
+
+    /** IDE -> debugger */
+    OUTBOUND
+}
+
+/**
+ * One frame of a capture file
+ * @param timeNanos Time since the start of the capture
+ * @param cmd Raw command id
+ * @param payload Payload as encoded in that direction, JSON or CBOR depending on what was
+ * negotiated, independent of the framing and compression used on the wire
+ */
+class CapturedFrame(
+    val timeNanos: Long,
+    val direction: CaptureDirection,
+    val cmd: Int,
+    val payload: ByteArray
+)
+
+/**
+ * Capture file layout, gzip-compressed as a whole:
+ *   header: "EMMYCAP" [version:int8] [startEpochMillis:int64]
+ *   frames: [timeNanos:int64] [direction:int8] [cmd:int32] [length:int32] [payload]
+ */
+object TrafficCapture {
+    const val EXTENSION = "emmycap"
+    const val VERSION = 1
+
+    private val MAGIC = "EMMYCAP".toByteArray(Charsets.US_ASCII)
+
+    internal fun writeHeader(out: DataOutputStream, startEpochMillis: Long) {
+        out.write(MAGIC)
+        out.writeByte(VERSION)
+        out.writeLong(startEpochMillis)
+    }
+
+    internal fun readHeader(input: DataInputStream): Long {
+        val magic = ByteArray(MAGIC.size)
+        input.readFully(magic)
+        if (!magic.contentEquals(MAGIC)) {
+            throw IOException("Not an Emmy capture file")
+        }
+        val version = input.readUnsignedByte()
+        if (version != VERSION) {
+            throw IOException("Unsupported capture version: $version")
+        }
+        return input.readLong()
+    }
+}
+
+/**
+ * Records frames to a capture file.
+ *
+ * [record] only copies the payload and queues it; a background thread does the
+ * compression and file I/O so the transport reactor never waits on the disk.
+ */
+class TrafficRecorder(val file: File) : Closeable {
+
+    private val logger = Logger.getInstance(javaClass)
+
+    private val startNanos = System.nanoTime()
+    private val queue = LinkedBlockingQueue<CapturedFrame>()
+    private val writer = Thread(::writeLoop, "Emmy Debugger Capture")
+
+    @Volatile
+    private var closed = false
+
+    init {
+        file.parentFile?.mkdirs()
+        writer.isDaemon = true
+        writer.start()
+    }
+
+    /**
+     * Record a frame; [payload] is copied, its position is left unchanged
+     */
+    fun record(direction: CaptureDirection, cmd: Int, payload: ByteBuffer) {
+        val bytes = ByteArray(payload.remaining())
+        payload.duplicate().get(bytes)
+        record(direction, cmd, bytes)
+    }
+
+    fun record(direction: CaptureDirection, cmd: Int, payload: ByteArray) {
+        if (closed) return
+        queue.add(CapturedFrame(System.nanoTime() - startNanos, direction, cmd, payload))
+    }
+
+    /**
+     * Stop recording; frames already queued are still written
+     */
+    override fun close() {
+        if (closed) return
+        closed = true
+        queue.add(END)
+    }
+
+    private fun writeLoop() {
+        try {
+            DataOutputStream(BufferedOutputStream(GZIPOutputStream(file.outputStream(), BUFFER_SIZE), BUFFER_SIZE)).use { out ->
+                TrafficCapture.writeHeader(out, System.currentTimeMillis())
+                while (true) {
+                    val frame = queue.take()
+                    if (frame === END) break
+                    out.writeLong(frame.timeNanos)
+                    out.writeByte(frame.direction.ordinal)
+                    out.writeInt(frame.cmd)
+                    out.writeInt(frame.payload.size)
+                    out.write(frame.payload)
+                }
+            }
+            logger.info("Debugger traffic captured to ${file.path}")
+        } catch (e: Exception) {
+            closed = true
+            queue.clear()
+            logger.warn("Failed to write capture file ${file.path}", e)
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private val END = CapturedFrame(0, CaptureDirection.INBOUND, 0, ByteArray(0))
+    }
+}
+
+/**
+ * Reads the frames of a capture file in order
+ */
+class CaptureReader(file: File) : Closeable, Iterator<CapturedFrame> {
+
+    private val input = DataInputStream(BufferedInputStream(GZIPInputStream(file.inputStream(), 64 * 1024)))
+
+    /**
+     * Wall clock time the capture was started at
+     */
+    val startEpochMillis: Long = TrafficCapture.readHeader(input)
+
+    private var next: CapturedFrame? = null
+    private var finished = false
+
+    override fun hasNext(): Boolean {
+        if (next == null && !finished) {
+            next = readFrame()
+            finished = next == null
+        }
+        return next != null
+    }
+
+    override fun next(): CapturedFrame {
+        if (!hasNext()) throw NoSuchElementException()
+        return next!!.also { next = null }
+    }
+
+    private fun readFrame(): CapturedFrame? {
+        val time = try {
+            input.readLong()
+        } catch (e: EOFException) {
+            return null
+        }
+        val direction = CaptureDirection.entries.getOrNull(input.readUnsignedByte())
+            ?: throw IOException("Corrupt capture file")
+        val cmd = input.readInt()
+        val length = input.readInt()
+        if (length < 0 || length > FrameDecoder.MAX_FRAME_SIZE) {
+            throw IOException("Corrupt capture file")
+        }
+        val payload = ByteArray(length)
+        input.readFully(payload)
+        return CapturedFrame(time, direction, cmd, payload)
+    }
+
+    override fun close() {
+        input.close()
+    }
+}
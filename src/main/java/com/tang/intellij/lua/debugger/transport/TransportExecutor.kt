@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.intellij.openapi.diagnostic.Logger
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Thread usage counters of a [TransportExecutor]
+ */
+class ExecutorStats {
+    val threadsStarted = AtomicLong()
+    val activeTasks = AtomicInteger()
+    val peakActiveTasks = AtomicInteger()
+    val completedTasks = AtomicLong()
+
+    override fun toString(): String {
+        return "threads started: ${threadsStarted.get()}, active: ${activeTasks.get()}, " +
+                "peak: ${peakActiveTasks.get()}, completed: ${completedTasks.get()}"
+    }
+}
+
+/**
+ * Runs transport work off the reactor thread: handler callbacks, name resolution,
+ * binding. Kept separate from the IDE application pool so long debug sessions
+ * never compete with other IDE subsystems for its threads.
+ */
+interface TransportExecutor {
+    /**
+     * Human-readable description, for logs
+     */
+    val name: String
+
+    val stats: ExecutorStats
+
+    /**
+     * Create an executor for one connection; it runs tasks one at a time, in submission order
+     */
+    fun newConnectionExecutor(): Executor
+
+    /**
+     * Stop the threads; tasks not started yet are dropped
+     */
+    fun shutdown()
+
+    companion object {
+        private val logger = Logger.getInstance(TransportExecutor::class.java)
+
+        private val defaultExecutor = lazy {
+            val executor = VirtualThreadTransportExecutor.createOrNull() ?: PlatformTransportExecutor()
+            logger.info("Emmy debugger transport executor: ${executor.name}")
+            executor
+        }
+
+        /**
+         * Virtual threads when the runtime supports them, a bounded platform pool otherwise
+         */
+        val default: TransportExecutor by defaultExecutor
+
+        /**
+         * Shut [default] down if it was ever used, when the plugin is unloaded
+         */
+        internal fun shutdownDefault() {
+            if (defaultExecutor.isInitialized()) {
+                default.shutdown()
+            }
+        }
+    }
+}
+
+/**
+ * Base class counting thread usage around every task
+ */
+abstract class CountingTransportExecutor : TransportExecutor {
+
+    final override val stats = ExecutorStats()
+
+    protected abstract val backend: Executor
+
+    override fun newConnectionExecutor(): Executor = SerialExecutor(::submit)
+
+    private fun submit(task: Runnable) {
+        backend.execute {
+            val active = stats.activeTasks.incrementAndGet()
+            stats.peakActiveTasks.accumulateAndGet(active, ::maxOf)
+            try {
+                task.run()
+            } finally {
+                stats.activeTasks.decrementAndGet()
+                stats.completedTasks.incrementAndGet()
+            }
+        }
+    }
+}
+
+/**
+ * One virtual thread per burst of connection work.
+ * Only available on Java 21+, created reflectively since the plugin targets Java 17.
+ */
+class VirtualThreadTransportExecutor private constructor(
+    private val service: ExecutorService
+) : CountingTransportExecutor() {
+
+    override val name = "virtual threads"
+
+    override val backend = Executor { task ->
+        stats.threadsStarted.incrementAndGet()
+        service.execute(task)
+    }
+
+    override fun shutdown() {
+        service.shutdownNow()
+    }
+
+    companion object {
+        fun createOrNull(): VirtualThreadTransportExecutor? {
+            return try {
+                val factory = Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor")
+                VirtualThreadTransportExecutor(factory.invoke(null) as ExecutorService)
+            } catch (e: ReflectiveOperationException) {
+                null
+            }
+        }
+    }
+}
+
+/**
+ * Dedicated, bounded pool of daemon platform threads
+ * @param maxThreads Maximum number of threads; further work waits in the queue
+ */
+class PlatformTransportExecutor(maxThreads: Int = DEFAULT_THREADS) : CountingTransportExecutor() {
+
+    override val name = "platform pool ($maxThreads threads)"
+
+    private val pool = ThreadPoolExecutor(
+        maxThreads, maxThreads,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        LinkedBlockingQueue(),
+        countingThreadFactory("Emmy Debugger Transport")
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    override val backend: Executor = pool
+
+    override fun shutdown() {
+        pool.shutdownNow()
+    }
+
+    private fun countingThreadFactory(name: String): ThreadFactory {
+        val counter = AtomicInteger()
+        return ThreadFactory { runnable ->
+            stats.threadsStarted.incrementAndGet()
+            Thread(runnable, "$name-${counter.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_THREADS = 4
+        private const val KEEP_ALIVE_SECONDS = 60L
+    }
+}
+
+/**
+ * Runs submitted tasks sequentially on a backing executor
+ */
+private class SerialExecutor(private val backend: Executor) : Executor {
+    private val queue = ConcurrentLinkedQueue<Runnable>()
+    private val scheduled = AtomicBoolean(false)
+
+    override fun execute(command: Runnable) {
+        queue.add(command)
+        schedule()
+    }
+
+    private fun schedule() {
+        if (queue.isNotEmpty() && scheduled.compareAndSet(false, true)) {
+            backend.execute(::drain)
+        }
+    }
+
+    private fun drain() {
+        try {
+            while (true) {
+                val task = queue.poll() ?: break
+                task.run()
+            }
+        } finally {
+            scheduled.set(false)
+            schedule()
+        }
+    }
+}
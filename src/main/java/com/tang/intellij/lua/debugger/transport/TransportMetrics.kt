@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.google.gson.GsonBuilder
+import com.tang.intellij.lua.debugger.model.DebugCommand
+import com.tang.intellij.lua.debugger.model.DebugMessage
+import com.tang.intellij.lua.debugger.model.EvalBatchRequest
+import com.tang.intellij.lua.debugger.model.EvalRequest
+import com.tang.intellij.lua.debugger.model.ReadyRequest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Counters describing the traffic of one transport
+ *
+ * Timings are split along the path of a message so a slow step can be attributed:
+ * encode (IDE to bytes), round trip (socket to debuggee and back), decode (bytes to
+ * payload), dispatch delay (waiting for the handler executor) and handling (Gson and
+ * model building in the handler).
+ *
+ * @param queueDepth Reports the current number of queued outgoing messages
+ */
+class TransportMetrics(private val queueDepth: () -> Int = { 0 }) {
+
+    /**
+     * Messages handed to the socket
+     */
+    val messagesWritten = AtomicLong()
+
+    /**
+     * Write system calls used for them
+     */
+    val writeCalls = AtomicLong()
+
+    /**
+     * Messages discarded before reaching the socket: stale evaluations or a full queue
+     */
+    val messagesDropped = AtomicLong()
+
+    /**
+     * Highest outbound queue depth seen
+     */
+    val peakQueueDepth = AtomicLong()
+
+    /**
+     * Evaluations that got no response in time
+     */
+    val evalsTimedOut = AtomicLong()
+
+    /**
+     * Evaluation responses nobody waited for any more: timed out, cancelled or unknown
+     */
+    val evalsOrphaned = AtomicLong()
+
+    /**
+     * Evaluations refused because too many were in flight
+     */
+    val evalsRejected = AtomicLong()
+
+    /**
+     * Evaluation responses dropped undecoded because they were asked for in an earlier
+     * suspend state, or for a node no longer shown; unknown ones count as orphaned
+     */
+    val evalsStale = AtomicLong()
+
+    /**
+     * Evaluations answered from the results of the current suspend state
+     */
+    val evalCacheHits = AtomicLong()
+
+    /**
+     * Evaluations that had to be sent to the debuggee
+     */
+    val evalCacheMisses = AtomicLong()
+
+    /**
+     * Time from writing an EvalReq to handling its EvalRsp
+     */
+    val evalRoundTrip = LatencyHistogram()
+
+    /**
+     * Time a received message waits before its handler starts
+     */
+    val dispatchDelay = LatencyHistogram()
+
+    /**
+     * Time from a connection being established to its ReadyReq being written
+     */
+    val connectToReady = LatencyHistogram()
+
+    /**
+     * Time from writing the ReadyReq to receiving the first break of the connection
+     */
+    val readyToFirstBreak = LatencyHistogram()
+
+    /**
+     * Time from a connection being established to its first break
+     */
+    val connectToFirstBreak = LatencyHistogram()
+
+    private val commands = Array(DebugCommand.entries.size) { CommandMetrics() }
+
+    // Write time of evaluations waiting for their response, keyed by seq
+    private val pendingEvals = ConcurrentHashMap<Int, Long>()
+
+    // Handshake milestones of the current connection, 0 once recorded
+    @Volatile
+    private var connectedAt = 0L
+    @Volatile
+    private var readyAt = 0L
+
+    /**
+     * Average number of messages sent per write call
+     */
+    val messagesPerWrite: Double
+        get() {
+            val calls = writeCalls.get()
+            return if (calls == 0L) 0.0 else messagesWritten.get().toDouble() / calls
+        }
+
+    /**
+     * Messages currently waiting to be sent
+     */
+    val currentQueueDepth: Int
+        get() = queueDepth()
+
+    /**
+     * Counters of a single command
+     */
+    fun command(command: DebugCommand): CommandMetrics = commands[command.ordinal]
+
+    fun recordWrites(messages: Int, calls: Int) {
+        messagesWritten.addAndGet(messages.toLong())
+        writeCalls.addAndGet(calls.toLong())
+    }
+
+    fun recordQueueDepth(depth: Int) {
+        peakQueueDepth.accumulateAndGet(depth.toLong(), ::maxOf)
+    }
+
+    /**
+     * A message has been encoded into [bytes] bytes
+     */
+    fun recordSent(message: DebugMessage, bytes: Int, encodeNanos: Long) {
+        commandOf(message.cmd).recordOut(bytes, encodeNanos)
+        if (message is EvalRequest) {
+            pendingEvals[message.seq] = System.nanoTime()
+        } else if (message is EvalBatchRequest) {
+            val now = System.nanoTime()
+            message.evals.forEach { pendingEvals[it.seq] = now }
+        } else if (message is ReadyRequest && connectedAt != 0L) {
+            readyAt = System.nanoTime()
+            connectToReady.record(readyAt - connectedAt)
+        }
+    }
+
+    /**
+     * A connection has been established, its handshake timings start now
+     */
+    fun recordConnected() {
+        connectedAt = System.nanoTime()
+        readyAt = 0L
+    }
+
+    /**
+     * A frame of [bytes] payload bytes has been received and decoded
+     */
+    fun recordReceived(cmd: Int, bytes: Int, decodeNanos: Long) {
+        commandOf(cmd).recordIn(bytes, decodeNanos)
+        if (cmd == DebugCommand.BreakNotify.ordinal && connectedAt != 0L) {
+            recordFirstBreak()
+        }
+    }
+
+    private fun recordFirstBreak() {
+        val now = System.nanoTime()
+        if (readyAt != 0L) {
+            readyToFirstBreak.record(now - readyAt)
+        }
+        connectToFirstBreak.record(now - connectedAt)
+        connectedAt = 0L
+        readyAt = 0L
+    }
+
+    fun recordHandled(command: DebugCommand, handleNanos: Long, waitNanos: Long) {
+        commands[command.ordinal].handleNanos.addAndGet(handleNanos)
+        dispatchDelay.record(waitNanos)
+    }
+
+    /**
+     * The response to the evaluation [seq] has arrived
+     */
+    fun recordEvalResponse(seq: Int) {
+        val sent = pendingEvals.remove(seq) ?: return
+        evalRoundTrip.record(System.nanoTime() - sent)
+    }
+
+    /**
+     * Stop timing the evaluation [seq], it timed out or was cancelled
+     */
+    fun recordEvalAbandoned(seq: Int) {
+        pendingEvals.remove(seq)
+    }
+
+    /**
+     * Forget evaluations whose responses will never arrive, e.g. after a disconnect
+     */
+    fun clearPending() {
+        pendingEvals.clear()
+    }
+
+    fun reset() {
+        messagesWritten.set(0)
+        writeCalls.set(0)
+        messagesDropped.set(0)
+        peakQueueDepth.set(0)
+        evalsTimedOut.set(0)
+        evalsOrphaned.set(0)
+        evalsRejected.set(0)
+        evalsStale.set(0)
+        evalCacheHits.set(0)
+        evalCacheMisses.set(0)
+        evalRoundTrip.reset()
+        dispatchDelay.reset()
+        connectToReady.reset()
+        readyToFirstBreak.reset()
+        connectToFirstBreak.reset()
+        commands.forEach { it.reset() }
+    }
+
+    private fun commandOf(cmd: Int): CommandMetrics {
+        return commands[if (cmd in commands.indices) cmd else DebugCommand.Unknown.ordinal]
+    }
+
+    /**
+     * Consistent-enough copy of all counters for display and export
+     */
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            messagesWritten = messagesWritten.get(),
+            writeCalls = writeCalls.get(),
+            messagesPerWrite = messagesPerWrite,
+            messagesDropped = messagesDropped.get(),
+            queueDepth = currentQueueDepth,
+            peakQueueDepth = peakQueueDepth.get(),
+            pendingEvals = pendingEvals.size,
+            evalsTimedOut = evalsTimedOut.get(),
+            evalsOrphaned = evalsOrphaned.get(),
+            evalsRejected = evalsRejected.get(),
+            evalsStale = evalsStale.get(),
+            evalCacheHits = evalCacheHits.get(),
+            evalCacheMisses = evalCacheMisses.get(),
+            evalRoundTrip = evalRoundTrip.snapshot(),
+            dispatchDelay = dispatchDelay.snapshot(),
+            connectToReady = connectToReady.snapshot(),
+            readyToFirstBreak = readyToFirstBreak.snapshot(),
+            connectToFirstBreak = connectToFirstBreak.snapshot(),
+            commands = DebugCommand.entries
+                .map { it to commands[it.ordinal].snapshot() }
+                .filter { (_, stats) -> stats.messagesIn + stats.messagesOut > 0 }
+                .associate { (command, stats) -> command.name to stats }
+        )
+    }
+
+    /**
+     * Export a [snapshot] as pretty-printed JSON
+     */
+    fun toJson(): String {
+        return GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(snapshot())
+    }
+
+    data class Snapshot(
+        val messagesWritten: Long,
+        val writeCalls: Long,
+        val messagesPerWrite: Double,
+        val messagesDropped: Long,
+        val queueDepth: Int,
+        val peakQueueDepth: Long,
+        val pendingEvals: Int,
+        val evalsTimedOut: Long,
+        val evalsOrphaned: Long,
+        val evalsRejected: Long,
+        val evalsStale: Long,
+        val evalCacheHits: Long,
+        val evalCacheMisses: Long,
+        val evalRoundTrip: LatencyHistogram.Snapshot,
+        val dispatchDelay: LatencyHistogram.Snapshot,
+        val connectToReady: LatencyHistogram.Snapshot,
+        val readyToFirstBreak: LatencyHistogram.Snapshot,
+        val connectToFirstBreak: LatencyHistogram.Snapshot,
+        val commands: Map<String, CommandMetrics.Snapshot>
+    )
+}
+
+/**
+ * Traffic and timing counters of one [DebugCommand]
+ */
+class CommandMetrics {
+    val messagesIn = AtomicLong()
+    val messagesOut = AtomicLong()
+    val bytesIn = AtomicLong()
+    val bytesOut = AtomicLong()
+    val encodeNanos = AtomicLong()
+    val decodeNanos = AtomicLong()
+    val handleNanos = AtomicLong()
+
+    fun recordOut(bytes: Int, nanos: Long) {
+        messagesOut.incrementAndGet()
+        bytesOut.addAndGet(bytes.toLong())
+        encodeNanos.addAndGet(nanos)
+    }
+
+    fun recordIn(bytes: Int, nanos: Long) {
+        messagesIn.incrementAndGet()
+        bytesIn.addAndGet(bytes.toLong())
+        decodeNanos.addAndGet(nanos)
+    }
+
+    fun reset() {
+        listOf(messagesIn, messagesOut, bytesIn, bytesOut, encodeNanos, decodeNanos, handleNanos).forEach { it.set(0) }
+    }
+
+    fun snapshot(): Snapshot {
+        return Snapshot(
+            messagesIn.get(), messagesOut.get(), bytesIn.get(), bytesOut.get(),
+            encodeNanos.get() / 1000, decodeNanos.get() / 1000, handleNanos.get() / 1000
+        )
+    }
+
+    data class Snapshot(
+        val messagesIn: Long,
+        val messagesOut: Long,
+        val bytesIn: Long,
+        val bytesOut: Long,
+        val encodeMicros: Long,
+        val decodeMicros: Long,
+        val handleMicros: Long
+    )
+}
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+    // Bucket 0 counts sub-microsecond samples, bucket i counts [2^(i-1), 2^i) microseconds
+    private val buckets = AtomicLongArray(BUCKETS)
+    private val count = AtomicLong()
+    private val totalNanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+
+    fun record(nanos: Long) {
+        val micros = nanos / 1000
+        val bucket = if (micros <= 0) 0 else minOf(64 - java.lang.Long.numberOfLeadingZeros(micros), BUCKETS - 1)
+        buckets.incrementAndGet(bucket)
+        count.incrementAndGet()
+        totalNanos.addAndGet(nanos)
+        maxNanos.accumulateAndGet(nanos, ::maxOf)
+    }
+
+    /**
+     * Upper bound in microseconds below which [fraction] of the samples fall
+     */
+    fun percentileMicros(fraction: Double): Long {
+        val total = count.get()
+        if (total == 0L) return 0
+        val target = maxOf(1L, Math.ceil(total * fraction).toLong())
+        var seen = 0L
+        for (i in 0 until BUCKETS) {
+            seen += buckets.get(i)
+            if (seen >= target) {
+                return minOf(1L shl i, maxNanos.get() / 1000)
+            }
+        }
+        return maxNanos.get() / 1000
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKETS) buckets.set(i, 0)
+        count.set(0)
+        totalNanos.set(0)
+        maxNanos.set(0)
+    }
+
+    fun snapshot(): Snapshot {
+        val samples = count.get()
+        val histogram = LinkedHashMap<String, Long>()
+        for (i in 0 until BUCKETS) {
+            val n = buckets.get(i)
+            if (n > 0) histogram["<${1L shl i}us"] = n
+        }
+        return Snapshot(
+            count = samples,
+            meanMicros = if (samples == 0L) 0 else totalNanos.get() / samples / 1000,
+            p50Micros = percentileMicros(0.50),
+            p90Micros = percentileMicros(0.90),
+            p99Micros = percentileMicros(0.99),
+            maxMicros = maxNanos.get() / 1000,
+            buckets = histogram
+        )
+    }
+
+    data class Snapshot(
+        val count: Long,
+        val meanMicros: Long,
+        val p50Micros: Long,
+        val p90Micros: Long,
+        val p99Micros: Long,
+        val maxMicros: Long,
+        val buckets: Map<String, Long>
+    )
+
+    companion object {
+        private const val BUCKETS = 32
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import com.intellij.openapi.diagnostic.Logger
+import java.io.IOException
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.SelectableChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Receives readiness events for a channel registered with [TransportReactor]
+ */
+interface ChannelListener {
+    /**
+     * Called on the reactor thread when the channel is ready for any of its interest ops
+     */
+    fun onReady(key: SelectionKey)
+
+    /**
+     * Called on the reactor thread when [onReady] throws
+     */
+    fun onFailure(exception: Exception)
+}
+
+/**
+ * Single-threaded NIO reactor multiplexing the channels of every debug session.
+ *
+ * All channel I/O happens on the reactor thread; transport handler callbacks are
+ * moved off it through a [TransportExecutor] so a slow handler never stalls other sessions.
+ */
+class TransportReactor(name: String) {
+
+    private val logger = Logger.getInstance(javaClass)
+
+    private val selector: Selector = Selector.open()
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+    private val thread = Thread(::loop, name)
+
+    init {
+        thread.isDaemon = true
+        thread.start()
+    }
+
+    /**
+     * Check if the caller runs on the reactor thread
+     */
+    val isReactorThread: Boolean
+        get() = Thread.currentThread() === thread
+
+    /**
+     * Run [task] on the reactor thread, immediately if already on it
+     */
+    fun execute(task: Runnable) {
+        if (isReactorThread) {
+            task.run()
+        } else {
+            post(task)
+        }
+    }
+
+    /**
+     * Run [task] on the reactor thread after the next select,
+     * once keys cancelled so far have been released
+     */
+    fun post(task: Runnable) {
+        tasks.add(task)
+        selector.wakeup()
+    }
+
+    /**
+     * Register a channel; must be called on the reactor thread
+     */
+    fun register(channel: SelectableChannel, ops: Int, listener: ChannelListener): SelectionKey {
+        check(isReactorThread) { "register must be called on the reactor thread" }
+        channel.configureBlocking(false)
+        return channel.register(selector, ops, listener)
+    }
+
+    /**
+     * Close every registered channel and the selector, which ends the reactor thread.
+     * Does not wait for it.
+     */
+    fun close() {
+        post {
+            selector.keys().forEach { key ->
+                try {
+                    key.channel().close()
+                } catch (e: IOException) {
+                    // Ignore
+                }
+            }
+            selector.close()
+        }
+    }
+
+    private fun loop() {
+        while (true) {
+            try {
+                selector.select()
+                runTasks()
+
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val key = keys.next()
+                    keys.remove()
+                    val listener = key.attachment() as? ChannelListener ?: continue
+                    try {
+                        if (key.isValid) {
+                            listener.onReady(key)
+                        }
+                    } catch (e: Exception) {
+                        listener.onFailure(e)
+                    }
+                }
+            } catch (e: ClosedSelectorException) {
+                break
+            } catch (e: Exception) {
+                logger.error("Error in transport reactor", e)
+            }
+        }
+    }
+
+    private fun runTasks() {
+        while (true) {
+            val task = tasks.poll() ?: return
+            try {
+                task.run()
+            } catch (e: Exception) {
+                logger.error("Error in transport reactor task", e)
+            }
+        }
+    }
+
+    companion object {
+        private val sharedReactor = lazy { TransportReactor("Emmy Debugger I/O") }
+
+        /**
+         * Reactor shared by all Emmy debug sessions of the IDE
+         */
+        val shared: TransportReactor by sharedReactor
+
+        /**
+         * Close [shared] if it was ever used, when the plugin is unloaded
+         */
+        internal fun shutdownShared() {
+            if (sharedReactor.isInitialized()) {
+                shared.close()
+            }
+        }
+    }
+}
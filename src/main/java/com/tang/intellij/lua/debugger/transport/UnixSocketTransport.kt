@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017. tangzx(love.tangzx@qq.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tang.intellij.lua.debugger.transport
+
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.net.UnixDomainSocketAddress
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+
+/**
+ * Client transport over a Unix domain socket - IDE connects to a debugger on the same host
+ */
+class UnixSocketClientTransport(
+    private val socketPath: String,
+    executor: TransportExecutor = TransportExecutor.default
+) : ClientTransport(socketPath, 0, executor) {
+
+    override val endpoint: String
+        get() = socketPath
+
+    override fun resolveAddress(): SocketAddress {
+        return UnixDomainSocketAddress.of(socketPath)
+    }
+
+    override fun openChannel(): SocketChannel {
+        return SocketChannel.open(StandardProtocolFamily.UNIX)
+    }
+}
+
+/**
+ * Server transport over a Unix domain socket - IDE waits for a debugger on the same host.
+ * The socket file is created on start and removed when the server closes.
+ */
+class UnixSocketServerTransport(
+    private val socketPath: String,
+    executor: TransportExecutor = TransportExecutor.default
+) : ServerTransport(socketPath, 0, executor) {
+
+    override val endpoint: String
+        get() = socketPath
+
+    override fun openServer(): ServerSocketChannel {
+        val address = UnixDomainSocketAddress.of(socketPath)
+        // A socket file left behind by a previous session makes bind fail
+        deleteSocketFile(address.path)
+
+        val server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+        server.bind(address)
+        return server
+    }
+
+    override fun closeServer(server: ServerSocketChannel) {
+        try {
+            super.closeServer(server)
+        } finally {
+            deleteSocketFile(Path.of(socketPath))
+        }
+    }
+
+    /**
+     * Delete [path] if it is a socket file, never touch regular files or directories
+     */
+    private fun deleteSocketFile(path: Path) {
+        try {
+            if (Files.exists(path) && Files.readAttributes(path, BasicFileAttributes::class.java).isOther) {
+                Files.delete(path)
+            }
+        } catch (e: Exception) {
+            logger.warn("Failed to delete socket file $path", e)
+        }
+    }
+}
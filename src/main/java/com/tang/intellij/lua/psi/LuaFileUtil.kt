@@ -100,7 +100,7 @@ object LuaFileUtil {
     /**
      * Find a file in the specified source roots.
      */
-    private fun findInSourceRoots(relativePath: String, sourceRoots: List<String>): VirtualFile? {
+    fun findInSourceRoots(relativePath: String, sourceRoots: List<String>): VirtualFile? {
         for (sourceRoot in sourceRoots) {
             if (sourceRoot.isBlank()) continue
             